@@ -1,8 +1,8 @@
 package com.idega.block.email.bean;
 
 import java.io.Serializable;
-import java.util.ArrayList;
 import java.util.Collection;
+import java.util.LinkedHashSet;
 
 import javax.mail.Message;
 
@@ -29,7 +29,7 @@ public class FoundMessagesInfo implements Serializable {
 	public FoundMessagesInfo(Collection<Message> messages, MessageParserType parserType) {
 		this(parserType);
 		
-		this.messages = messages == null ? null : new ArrayList<Message>(messages);
+		this.messages = messages == null ? null : new LinkedHashSet<Message>(messages);
 	}
 	
 	public Collection<Message> getMessages() {
@@ -40,9 +40,12 @@ public class FoundMessagesInfo implements Serializable {
 		return parserType;
 	}
 	
+	/**
+	 * Messages are kept in a set in the order they were added, so the same message is not added twice
+	 */
 	public void addMessage(Message message) {
 		if (messages == null) {
-			messages = new ArrayList<Message>();
+			messages = new LinkedHashSet<Message>();
 		}
 		messages.add(message);
 	}
@@ -0,0 +1,91 @@
+package com.idega.block.email.bean;
+
+import java.io.File;
+import java.util.Collection;
+import java.util.Map;
+
+import com.idega.block.email.business.EmailAccount;
+import com.idega.block.email.business.OutboundMailCallback;
+import com.idega.block.email.data.Message;
+
+/**
+ * Options of e-mail put to the outbound queue
+ */
+public class OutboundMailParameters {
+
+	private Collection<File> attachments;
+	private Map<String, String> headers;
+	private Boolean grouped;
+	private EmailAccount account;
+	private Message archivedMessage;
+	private OutboundMailCallback callback;
+
+	/**
+	 * @return files to attach, if not set - attached files of the message
+	 */
+	public Collection<File> getAttachments() {
+		return attachments;
+	}
+
+	public void setAttachments(Collection<File> attachments) {
+		this.attachments = attachments;
+	}
+
+	/**
+	 * @return additional headers: To and Cc of grouped message, Reply-To etc.
+	 */
+	public Map<String, String> getHeaders() {
+		return headers;
+	}
+
+	public void setHeaders(Map<String, String> headers) {
+		this.headers = headers;
+	}
+
+	/**
+	 * @return <code>true</code> if recipients can share the envelope, if not set - value of setting is used
+	 */
+	public Boolean getGrouped() {
+		return grouped;
+	}
+
+	public void setGrouped(Boolean grouped) {
+		this.grouped = grouped;
+	}
+
+	/**
+	 * @return SMTP account to send thru, if not set - server and account of settings are used
+	 */
+	public EmailAccount getAccount() {
+		return account;
+	}
+
+	public void setAccount(EmailAccount account) {
+		this.account = account;
+	}
+
+	/**
+	 * @return archived message which is sent; its attachments are used and deliveries are recorded for it
+	 */
+	public Message getArchivedMessage() {
+		return archivedMessage;
+	}
+
+	public void setArchivedMessage(Message archivedMessage) {
+		this.archivedMessage = archivedMessage;
+	}
+
+	public OutboundMailCallback getCallback() {
+		return callback;
+	}
+
+	public void setCallback(OutboundMailCallback callback) {
+		this.callback = callback;
+	}
+
+	@Override
+	public String toString() {
+		return new StringBuilder("Headers: ").append(getHeaders()).append(", grouped: ").append(getGrouped()).append(", attachments: ")
+			.append(getAttachments()).toString();
+	}
+}
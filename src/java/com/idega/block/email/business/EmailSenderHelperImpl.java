@@ -5,12 +5,15 @@ import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import javax.mail.Message;
+import javax.mail.internet.AddressException;
+import javax.mail.internet.InternetAddress;
 
 import org.directwebremoting.annotations.Param;
 import org.directwebremoting.annotations.RemoteMethod;
@@ -25,8 +28,11 @@ import org.springframework.stereotype.Service;
 import com.idega.block.email.bean.FoundMessagesInfo;
 import com.idega.block.email.bean.MessageParameters;
 import com.idega.block.email.bean.MessageParserType;
+import com.idega.block.email.bean.OutboundMailParameters;
 import com.idega.block.email.client.business.ApplicationEmailEvent;
 import com.idega.business.IBOLookup;
+import com.idega.core.file.util.MimeTypeUtil;
+import com.idega.core.messaging.EmailMessage;
 import com.idega.idegaweb.IWMainApplication;
 import com.idega.idegaweb.IWMainApplicationSettings;
 import com.idega.slide.business.IWSlideService;
@@ -34,7 +40,6 @@ import com.idega.util.CoreConstants;
 import com.idega.util.FileUtil;
 import com.idega.util.IOUtil;
 import com.idega.util.ListUtil;
-import com.idega.util.SendMail;
 import com.idega.util.StringHandler;
 import com.idega.util.StringUtil;
 
@@ -63,6 +68,16 @@ public class EmailSenderHelperImpl implements EmailSenderHelper {
 	@Autowired
 	private ApplicationContext context;
 
+	@Autowired
+	private OutboundMailQueue outboundMailQueue;
+
+	@Autowired
+	private SMTPDeliveryEngine deliveryEngine;
+
+	/**
+	 * Message is put to the outbound queue and event about it is published at once: attached file is stored with the queued mail, so the event's
+	 * handler owns it. Failed deliveries are retried and logged by the queue.
+	 */
 	@Override
 	@RemoteMethod
 	public boolean sendMessage(MessageParameters parameters) {
@@ -75,28 +90,62 @@ public class EmailSenderHelperImpl implements EmailSenderHelper {
 
 		File attachedFile = getFileToAttach(parameters.getAttachments(), parameters.getSubject());
 
-		Message mail = null;
-		boolean success = false;
+		List<String> recipients = new ArrayList<String>();
 		try {
-			mail = SendMail.send(parameters.getFrom(), parameters.getRecipientTo(), parameters.getRecipientCc(), parameters.getRecipientBcc(), parameters.getReplyTo(),
-					host, parameters.getSubject(), parameters.getMessage(), false, false, attachedFile);
-			success = mail != null;
-			return success;
-		} catch(Exception e) {
-			LOGGER.log(Level.SEVERE, "Error sending mail: " + parameters, e);
-			success = false;
-		} finally {
-			if (success && mail != null) {
-				publishEvent(mail, parameters, attachedFile);
-			} else {
-				//	Attached file will be deleted by published event's handler
-				if (attachedFile != null) {
-					attachedFile.delete();
+			for (String addresses: new String[] {parameters.getRecipientTo(), parameters.getRecipientCc(), parameters.getRecipientBcc()}) {
+				if (!StringUtil.isEmpty(addresses)) {
+					for (InternetAddress address: InternetAddress.parse(addresses)) {
+						recipients.add(address.getAddress());
+					}
 				}
 			}
+		} catch (AddressException e) {
+			LOGGER.log(Level.WARNING, "Invalid recipients of mail: " + parameters, e);
+		}
+		if (ListUtil.isEmpty(recipients)) {
+			if (attachedFile != null) {
+				attachedFile.delete();
+			}
+			return Boolean.FALSE;
+		}
+
+		EmailMessage email = new EmailMessage();
+		email.setFromAddress(parameters.getFrom());
+		email.setSubject(parameters.getSubject());
+		email.setBody(parameters.getMessage());
+		email.setMailType(MimeTypeUtil.MIME_TYPE_TEXT_PLAIN);
+		email.setMailServer(host);
+
+		Map<String, String> headers = new LinkedHashMap<String, String>();
+		headers.put("To", parameters.getRecipientTo());
+		headers.put("Cc", parameters.getRecipientCc());
+		headers.put("Reply-To", parameters.getReplyTo());
+
+		List<File> attachments = attachedFile == null ? new ArrayList<File>(0) : Arrays.asList(attachedFile);
+		OutboundMailParameters outboundParameters = new OutboundMailParameters();
+		outboundParameters.setAttachments(attachments);
+		outboundParameters.setHeaders(headers);
+		outboundParameters.setGrouped(Boolean.TRUE);
+
+		if (outboundMailQueue.enqueue(email, recipients, outboundParameters) == null) {
+			LOGGER.severe("Error sending mail: " + parameters);
+			if (attachedFile != null) {
+				attachedFile.delete();
+			}
+			return Boolean.FALSE;
+		}
+
+		try {
+			publishEvent(deliveryEngine.getMimeMessage(email, headers, attachments), parameters, attachedFile);
+		} catch (Exception e) {
+			LOGGER.log(Level.WARNING, "Error publishing event about sent mail: " + parameters, e);
+			//	Attached file is deleted by published event's handler otherwise
+			if (attachedFile != null) {
+				attachedFile.delete();
+			}
 		}
 
-		return Boolean.FALSE;
+		return Boolean.TRUE;
 	}
 
 	private void publishEvent(Message mail, MessageParameters parameters, File attachedFile) {
@@ -4,8 +4,10 @@ import java.io.FileReader;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 
 import javax.mail.Address;
@@ -20,8 +22,12 @@ import javax.mail.Transport;
 import javax.mail.internet.InternetAddress;
 import javax.mail.internet.MimeMessage;
 
+import com.idega.block.email.bean.OutboundMailParameters;
 import com.idega.core.contact.data.EmailDataView;
+import com.idega.core.file.util.MimeTypeUtil;
+import com.idega.core.messaging.EmailMessage;
 import com.idega.util.ArrayUtil;
+import com.idega.util.expression.ELUtil;
 
 /**
 
@@ -41,6 +47,7 @@ public class ListServer {
 		_user = null,
 		_password = null,
 		_fromName = null;
+	private EmailAccount _account = null;
 	private InternetAddress[] _toList = null;
 	/**
 	 *  main() is used to start an instance of the ListServer
@@ -263,33 +270,31 @@ public class ListServer {
 	 * @param  body      Description of the Parameter
 	 */
 	private void sendMsg(String from, Date sentDate, String replyTo, String subject, String body) throws Exception {
-		// create some properties and get the default Session
-		//
-		Properties props = new Properties();
-		props.put("mail.smtp.host", this._smtpHost);
-		Session session = Session.getDefaultInstance(props, null);
-		// create a message
+		// create a message, it is sent by the outbound queue
 		//
-		Address replyToList[] = { new InternetAddress(replyTo)};
-		Message newMessage = new MimeMessage(session);
-		if (this._fromName != null) {
-			newMessage.setFrom(new InternetAddress(from, this._fromName));
-		}
-		else {
-			newMessage.setFrom(new InternetAddress(from));
-		}
-		newMessage.setReplyTo(replyToList);
-		newMessage.setRecipients(Message.RecipientType.BCC, this._toList);
+		EmailMessage newMessage = new EmailMessage();
+		newMessage.setFromAddress(from);
+		newMessage.setSenderName(this._fromName);
 		newMessage.setSubject(subject);
-		newMessage.setSentDate(sentDate);
-		// Set message contents
-		//
-		newMessage.setText(body);
-		// Send newMessage
+		newMessage.setBody(body);
+		newMessage.setMailType(MimeTypeUtil.MIME_TYPE_TEXT_PLAIN);
+		newMessage.setMailServer(this._smtpHost);
+		Map<String, String> headers = new HashMap<String, String>();
+		headers.put("Reply-To", replyTo);
+		OutboundMailParameters parameters = new OutboundMailParameters();
+		parameters.setHeaders(headers);
+		parameters.setGrouped(Boolean.TRUE);
+		parameters.setAccount(this._account);
+		List<String> recipients = new ArrayList<String>(this._toList.length);
+		for (InternetAddress address: this._toList) {
+			recipients.add(address.getAddress());
+		}
+		// Queue newMessage
 		//
-		Transport transport = session.getTransport(SMTP_MAIL);
-		transport.connect(this._smtpHost, this._user, this._password);
-		transport.sendMessage(newMessage, this._toList);
+		OutboundMailQueue queue = ELUtil.getInstance().getBean(OutboundMailQueue.BEAN_IDENTIFIER);
+		if (queue.enqueue(newMessage, recipients, parameters) == null) {
+			throw new Exception("Unable to put message '" + subject + "' to the outbound queue");
+		}
 	}
 	/**
 
@@ -322,6 +327,7 @@ public class ListServer {
 			this._user = smtp.getUser();
 			this._password = smtp.getPassword();
 			this._fromName = letter.getFromName();
+			this._account = smtp;
 			this._toList = new InternetAddress[emails.size()];
 			Iterator<EmailDataView> iter = emails.iterator();
 			List<InternetAddress> addresses = new ArrayList<InternetAddress>();
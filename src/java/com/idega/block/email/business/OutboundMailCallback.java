@@ -0,0 +1,18 @@
+package com.idega.block.email.business;
+
+import java.util.Map;
+
+import com.idega.block.email.data.OutboundMail;
+
+/**
+ * Notified when delivery of queued mail is finished: it was sent to all recipients or their attempts were exhausted. Callbacks are kept in memory
+ * only, so they are not called for mails which were queued before restart of the application.
+ */
+public interface OutboundMailCallback {
+
+	/**
+	 * @param failures - errors of recipients to whom mail was not sent
+	 */
+	public void onProcessed(OutboundMail mail, int recipients, Map<String, String> failures);
+
+}
@@ -0,0 +1,722 @@
+package com.idega.block.email.business;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+
+import javax.ejb.FinderException;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.config.BeanDefinition;
+import org.springframework.context.ApplicationEvent;
+import org.springframework.context.ApplicationListener;
+import org.springframework.context.annotation.Scope;
+import org.springframework.context.event.ContextRefreshedEvent;
+import org.springframework.stereotype.Service;
+
+import com.idega.block.email.bean.OutboundMailParameters;
+import com.idega.block.email.data.MailAccount;
+import com.idega.block.email.data.Message;
+import com.idega.block.email.data.MessageDelivery;
+import com.idega.block.email.data.MessageDeliveryHome;
+import com.idega.block.email.data.OutboundMail;
+import com.idega.block.email.data.OutboundMailHome;
+import com.idega.core.business.DefaultSpringBean;
+import com.idega.core.file.data.ICFile;
+import com.idega.core.file.data.ICFileHome;
+import com.idega.core.file.util.MimeTypeUtil;
+import com.idega.core.messaging.EmailMessage;
+import com.idega.data.IDOLookup;
+import com.idega.idegaweb.IWMainApplicationShutdownEvent;
+import com.idega.util.CoreConstants;
+import com.idega.util.IOUtil;
+import com.idega.util.ListUtil;
+import com.idega.util.StringHandler;
+import com.idega.util.StringUtil;
+import com.idega.util.expression.ELUtil;
+
+/**
+ * Persistent queue of outgoing e-mails. Callers only store the mail ({@link OutboundMail}) with a pending {@link MessageDelivery} per recipient
+ * and return. Workers send due deliveries thru {@link SMTPDeliveryEngine}; failed deliveries are retried with exponential backoff until the
+ * attempts are exhausted. Finished mails are removed after the retention period.
+ *
+ * Many nodes can share the queue: delivery is claimed by conditional update, so only one node sends it. Node renews lease of deliveries it is
+ * sending on every poll; deliveries of a stopped node (or whose result could not be stored) are made pending again when their lease expires.
+ */
+@Service(OutboundMailQueue.BEAN_IDENTIFIER)
+@Scope(BeanDefinition.SCOPE_SINGLETON)
+public class OutboundMailQueue extends DefaultSpringBean implements ApplicationListener {
+
+	public static final String BEAN_IDENTIFIER = "email_OutboundMailQueue";
+
+	public static final String	PROP_WORKERS = "email_outbound_workers",
+								PROP_POLL_INTERVAL = "email_outbound_poll_interval",
+								PROP_BATCH_SIZE = "email_outbound_batch_size",
+								PROP_MAX_ATTEMPTS = "email_outbound_max_attempts",
+								PROP_RETRY_DELAY = "email_outbound_retry_delay",
+								PROP_MAX_RETRY_DELAY = "email_outbound_max_retry_delay",
+								PROP_RETENTION_DAYS = "email_outbound_retention_days";
+
+	private static final int DEFAULT_WORKERS = 2, DEFAULT_BATCH_SIZE = 1000, DEFAULT_MAX_ATTEMPTS = 8, DEFAULT_RETENTION_DAYS = 7;
+	private static final long	DEFAULT_POLL_INTERVAL = 30000, DEFAULT_RETRY_DELAY = 60000, DEFAULT_MAX_RETRY_DELAY = 6 * 60 * 60000L,
+								CLAIM_LEASE = 5 * 60000L, HOUR = 60 * 60000L, DAY = 24 * HOUR;
+
+	@Autowired
+	private SMTPDeliveryEngine deliveryEngine;
+
+	private ScheduledExecutorService poller;
+	private ThreadPoolExecutor workers;
+
+	private final AtomicBoolean pollRequested = new AtomicBoolean();
+	private final Set<Integer> inProgress = Collections.synchronizedSet(new HashSet<Integer>());
+	private final Map<Integer, OutboundMailCallback> callbacks = new ConcurrentHashMap<Integer, OutboundMailCallback>();
+
+	private volatile boolean shutdown;
+	private long lastPurge;
+
+	//	Identifies this instance of application in claims, new one after every restart
+	private final String node = getNodeName();
+
+	public void onApplicationEvent(ApplicationEvent event) {
+		if (event instanceof IWMainApplicationShutdownEvent) {
+			shutdown();
+		} else if (event instanceof ContextRefreshedEvent && !shutdown) {
+			//	Mails queued before restart are sent
+			getPoller();
+		}
+	}
+
+	public OutboundMail enqueue(EmailMessage email, Collection<String> recipients) {
+		return enqueue(email, recipients, null);
+	}
+
+	/**
+	 * Stores the mail and pending deliveries to the recipients. Sender, subject, body, mail type and mail server of the message are used, its
+	 * recipients are not. Deliveries are stored as held and become pending all at once, only when the whole mail is stored: mail which can not
+	 * be stored is removed and never sent.
+	 *
+	 * @return queued mail or <code>null</code> if it can not be stored
+	 */
+	public OutboundMail enqueue(EmailMessage email, Collection<String> recipients, OutboundMailParameters parameters) {
+		if (email == null || ListUtil.isEmpty(recipients)) {
+			getLogger().warning("Nothing to send: " + email + ", recipients: " + recipients);
+			return null;
+		}
+
+		Set<String> addresses = new LinkedHashSet<String>(recipients.size());
+		for (String recipient: recipients) {
+			if (!StringUtil.isEmpty(recipient)) {
+				addresses.add(recipient.trim());
+			}
+		}
+		if (addresses.isEmpty()) {
+			return null;
+		}
+
+		parameters = parameters == null ? new OutboundMailParameters() : parameters;
+		Timestamp now = new Timestamp(System.currentTimeMillis());
+		OutboundMail mail = null;
+		try {
+			mail = getOutboundMailHome().create();
+			mail.setFromAddress(email.getFromAddress());
+			mail.setSenderName(email.getSenderName());
+			mail.setSubject(email.getSubject());
+			mail.setContent(StringHandler.getStreamFromString(email.getBody() == null ? CoreConstants.EMPTY : email.getBody()));
+			mail.setMailType(email.getMailType());
+			mail.setMailServer(email.getMailServer());
+			mail.setHeaders(getHeaders(parameters.getHeaders()));
+			mail.setGrouped(parameters.getGrouped() == null ?
+					getApplication().getSettings().getBoolean(SMTPDeliveryEngine.PROP_GROUP_RECIPIENTS, false) :
+					parameters.getGrouped());
+			if (parameters.getAccount() instanceof MailAccount) {
+				mail.setAccount((MailAccount) parameters.getAccount());
+			}
+			Message archivedMessage = parameters.getArchivedMessage();
+			if (archivedMessage != null) {
+				mail.setMessage(archivedMessage);
+			}
+			mail.setCreated(now);
+			mail.store();
+
+			addAttachments(mail, email, parameters);
+
+			MessageDeliveryHome deliveryHome = getMessageDeliveryHome();
+			for (String address: addresses) {
+				MessageDelivery delivery = deliveryHome.create();
+				delivery.setOutboundMail(mail);
+				if (archivedMessage != null) {
+					delivery.setMessageId((Integer) archivedMessage.getPrimaryKey());
+				}
+				delivery.setRecipient(address);
+				delivery.setStatus(MessageDelivery.STATUS_HELD);
+				delivery.setAttempts(0);
+				delivery.setNextAttempt(now);
+				delivery.setUpdated(now);
+				delivery.store();
+			}
+
+			if (parameters.getCallback() != null) {
+				callbacks.put((Integer) mail.getPrimaryKey(), parameters.getCallback());
+			}
+			int released = deliveryHome.releaseHeld(mail, now);
+			if (released != addresses.size()) {
+				getLogger().warning("Expected " + addresses.size() + " deliveries of outbound mail " + mail.getPrimaryKey() + ", released: " + released);
+			}
+		} catch (Exception e) {
+			getLogger().log(Level.WARNING, "Error putting to the outbound queue message " + email + ", parameters: " + parameters, e);
+			if (mail != null && mail.getPrimaryKey() != null) {
+				callbacks.remove(mail.getPrimaryKey());
+				discard(mail);
+			}
+			return null;
+		}
+
+		wakeUp();
+		return mail;
+	}
+
+	private void addAttachments(OutboundMail mail, EmailMessage email, OutboundMailParameters parameters) throws Exception {
+		//	Archived attachments are not copied
+		if (parameters.getArchivedMessage() != null) {
+			Collection<ICFile> attachments = parameters.getArchivedMessage().getAttachments();
+			if (!ListUtil.isEmpty(attachments)) {
+				for (ICFile attachment: attachments) {
+					mail.addAttachment(attachment);
+				}
+			}
+			return;
+		}
+
+		Collection<File> attachments = parameters.getAttachments() == null ? email.getAttachedFiles() : parameters.getAttachments();
+		if (ListUtil.isEmpty(attachments)) {
+			return;
+		}
+
+		ICFileHome fileHome = (ICFileHome) IDOLookup.getHome(ICFile.class);
+		for (File attachment: attachments) {
+			if (attachment == null || !attachment.exists()) {
+				continue;
+			}
+
+			InputStream stream = new FileInputStream(attachment);
+			try {
+				ICFile attachmentInDB = fileHome.create();
+				attachmentInDB.setName(attachment.getName());
+				attachmentInDB.setFileValue(stream);
+				attachmentInDB.setMimeType(MimeTypeUtil.resolveMimeTypeFromFileName(attachment.getName()));
+				attachmentInDB.store();
+				mail.addAttachment(attachmentInDB);
+			} finally {
+				IOUtil.closeInputStream(stream);
+			}
+		}
+	}
+
+	/**
+	 * Removes partially stored mail. If it fails, held deliveries are never sent and are removed with the mail after the retention period.
+	 */
+	private void discard(OutboundMail mail) {
+		try {
+			Collection<MessageDelivery> deliveries = null;
+			try {
+				deliveries = getMessageDeliveryHome().findAllByOutboundMail(mail);
+			} catch (FinderException e) {}
+			remove(mail, deliveries, false);
+		} catch (Exception e) {
+			getLogger().log(Level.WARNING, "Error removing not queued outbound mail " + mail.getPrimaryKey(), e);
+		}
+	}
+
+	/**
+	 * Schedules polling of the queue now, instead of waiting for the next interval
+	 */
+	private void wakeUp() {
+		if (shutdown || !pollRequested.compareAndSet(false, true)) {
+			return;
+		}
+
+		getPoller().execute(new Runnable() {
+			public void run() {
+				pollRequested.set(false);
+				poll();
+			}
+		});
+	}
+
+	private void poll() {
+		if (shutdown) {
+			return;
+		}
+
+		try {
+			renewClaims();
+
+			int batchSize = getIntProperty(PROP_BATCH_SIZE, DEFAULT_BATCH_SIZE);
+			Collection<MessageDelivery> due = null;
+			try {
+				due = getMessageDeliveryHome().findAllDue(new Timestamp(System.currentTimeMillis()), batchSize);
+			} catch (FinderException e) {}
+
+			if (!ListUtil.isEmpty(due)) {
+				Map<Integer, List<MessageDelivery>> deliveriesByMail = new LinkedHashMap<Integer, List<MessageDelivery>>();
+				for (MessageDelivery delivery: due) {
+					Integer mailId = delivery.getOutboundMailId();
+					if (mailId <= 0 || inProgress.contains(mailId)) {
+						continue;
+					}
+
+					List<MessageDelivery> deliveries = deliveriesByMail.get(mailId);
+					if (deliveries == null) {
+						deliveries = new ArrayList<MessageDelivery>();
+						deliveriesByMail.put(mailId, deliveries);
+					}
+					deliveries.add(delivery);
+				}
+
+				final boolean moreDue = due.size() >= batchSize;
+				for (final Map.Entry<Integer, List<MessageDelivery>> entry: deliveriesByMail.entrySet()) {
+					final List<MessageDelivery> claimed = claim(entry.getValue());
+					if (claimed.isEmpty()) {
+						continue;
+					}
+
+					inProgress.add(entry.getKey());
+					getWorkers().execute(new Runnable() {
+						public void run() {
+							try {
+								deliver(entry.getKey(), claimed);
+							} finally {
+								inProgress.remove(entry.getKey());
+							}
+							if (moreDue) {
+								wakeUp();
+							}
+						}
+					});
+				}
+			}
+
+			purge();
+		} catch (Exception e) {
+			getLogger().log(Level.WARNING, "Error polling the outbound queue", e);
+		}
+	}
+
+	/**
+	 * @return deliveries claimed by this node, the others were claimed by other nodes meanwhile
+	 */
+	private List<MessageDelivery> claim(List<MessageDelivery> deliveries) throws Exception {
+		MessageDeliveryHome deliveryHome = getMessageDeliveryHome();
+		Timestamp now = new Timestamp(System.currentTimeMillis());
+		List<MessageDelivery> claimed = new ArrayList<MessageDelivery>(deliveries.size());
+		for (MessageDelivery delivery: deliveries) {
+			if (deliveryHome.claim(delivery.getPrimaryKey(), node, now) == 1) {
+				claimed.add(delivery);
+			}
+		}
+		return claimed;
+	}
+
+	/**
+	 * Extends lease of deliveries which are being sent by this node and releases deliveries which nobody renewed: of stopped nodes or whose
+	 * result was not stored
+	 */
+	private void renewClaims() throws Exception {
+		MessageDeliveryHome deliveryHome = getMessageDeliveryHome();
+		long now = System.currentTimeMillis();
+		List<Integer> mailIds = null;
+		synchronized (inProgress) {
+			mailIds = new ArrayList<Integer>(inProgress);
+		}
+		deliveryHome.renewClaims(node, mailIds, new Timestamp(now));
+
+		int released = deliveryHome.releaseExpiredClaims(new Timestamp(now - getClaimLease()));
+		if (released > 0) {
+			getLogger().info("Deliveries with expired claims to be sent again: " + released);
+		}
+	}
+
+	/**
+	 * @return time after which not renewed claim expires, long enough for a few polls
+	 */
+	private long getClaimLease() {
+		return Math.max(CLAIM_LEASE, 3 * getLongProperty(PROP_POLL_INTERVAL, DEFAULT_POLL_INTERVAL));
+	}
+
+	private void deliver(Integer mailId, List<MessageDelivery> deliveries) {
+		Map<String, String> failures = null;
+		OutboundMail mail = null;
+		List<InputStream> streams = new ArrayList<InputStream>();
+		try {
+			mail = getOutboundMailHome().findByPrimaryKey(mailId);
+
+			EmailMessage email = new EmailMessage();
+			email.setFromAddress(mail.getFromAddress());
+			email.setSenderName(mail.getSenderName());
+			email.setSubject(mail.getSubject());
+			email.setBody(StringHandler.getContentFromInputStream(mail.getContent()));
+			email.setMailType(mail.getMailType());
+			email.setMailServer(mail.getMailServer());
+
+			Collection<ICFile> attachments = mail.getAttachments();
+			if (!ListUtil.isEmpty(attachments)) {
+				Map<String, InputStream> files = new LinkedHashMap<String, InputStream>();
+				for (ICFile attachment: attachments) {
+					InputStream stream = attachment.getFileValue();
+					if (stream == null) {
+						getLogger().warning("There is no content of attachment " + attachment.getPrimaryKey() + " of outbound mail " + mailId);
+						continue;
+					}
+
+					streams.add(stream);
+					files.put(getUniqueName(files.keySet(), attachment.getName()), stream);
+				}
+				email.setAttachments(files);
+			}
+
+			String user = null, password = null;
+			MailAccount account = mail.getAccount();
+			if (account != null) {
+				email.setMailServer(account.getHost());
+				user = account.getUser();
+				password = account.getPassword();
+			}
+
+			List<String> recipients = new ArrayList<String>(deliveries.size());
+			for (MessageDelivery delivery: deliveries) {
+				recipients.add(delivery.getRecipient());
+			}
+
+			failures = getDeliveryEngine().deliver(email, recipients, mail.isGrouped(), getHeaders(mail.getHeaders()), user, password);
+		} catch (Exception e) {
+			getLogger().log(Level.WARNING, "Error sending outbound mail " + mailId, e);
+			failures = new HashMap<String, String>();
+			String error = e.getMessage() == null ? e.getClass().getName() : e.getMessage();
+			for (MessageDelivery delivery: deliveries) {
+				failures.put(delivery.getRecipient(), error);
+			}
+		} finally {
+			for (InputStream stream: streams) {
+				IOUtil.closeInputStream(stream);
+			}
+		}
+
+		int maxAttempts = getIntProperty(PROP_MAX_ATTEMPTS, DEFAULT_MAX_ATTEMPTS);
+		long now = System.currentTimeMillis();
+		for (MessageDelivery delivery: deliveries) {
+			try {
+				String error = failures.get(delivery.getRecipient());
+				int attempts = delivery.getAttempts() + 1;
+				delivery.setAttempts(attempts);
+				delivery.setClaimedBy(null);
+				delivery.setUpdated(new Timestamp(now));
+				if (error == null) {
+					delivery.setStatus(MessageDelivery.STATUS_SENT);
+					delivery.setError(null);
+				} else {
+					//	Permanently rejected recipient is not retried
+					delivery.setStatus(attempts >= maxAttempts || SMTPDeliveryEngine.isRejected(error) ?
+							MessageDelivery.STATUS_FAILED :
+							MessageDelivery.STATUS_PENDING);
+					delivery.setNextAttempt(new Timestamp(now + getRetryDelay(attempts)));
+					delivery.setError(error.length() <= 1000 ? error : error.substring(0, 1000));
+				}
+				delivery.store();
+			} catch (Exception e) {
+				getLogger().log(Level.WARNING, "Error storing delivery " + delivery.getPrimaryKey() + " of outbound mail " + mailId, e);
+			}
+		}
+
+		if (mail != null && callbacks.containsKey(mailId)) {
+			notifyIfProcessed(mail);
+		}
+	}
+
+	/**
+	 * Attachments are identified by names in the message, so the same name is numbered: <code>image.png</code>, <code>image (2).png</code>
+	 */
+	private String getUniqueName(Set<String> names, String name) {
+		name = StringUtil.isEmpty(name) ? "attachment" : name;
+		if (!names.contains(name)) {
+			return name;
+		}
+
+		int extension = name.lastIndexOf(CoreConstants.DOT);
+		String base = extension > 0 ? name.substring(0, extension) : name;
+		String suffix = extension > 0 ? name.substring(extension) : CoreConstants.EMPTY;
+		int number = 2;
+		String uniqueName = base + " (" + number + ")" + suffix;
+		while (names.contains(uniqueName)) {
+			uniqueName = base + " (" + (++number) + ")" + suffix;
+		}
+		return uniqueName;
+	}
+
+	/**
+	 * @return delay before the attempt after the given one: retry delay doubled for every failed attempt, but not longer than maximum delay
+	 */
+	private long getRetryDelay(int attempts) {
+		long delay = getLongProperty(PROP_RETRY_DELAY, DEFAULT_RETRY_DELAY);
+		long maxDelay = getLongProperty(PROP_MAX_RETRY_DELAY, DEFAULT_MAX_RETRY_DELAY);
+		for (int i = 1; i < attempts && delay < maxDelay; i++) {
+			delay *= 2;
+		}
+		return Math.min(delay, maxDelay);
+	}
+
+	private void notifyIfProcessed(OutboundMail mail) {
+		Collection<MessageDelivery> deliveries = null;
+		try {
+			deliveries = getMessageDeliveryHome().findAllByOutboundMail(mail);
+		} catch (Exception e) {
+			getLogger().log(Level.WARNING, "Error getting deliveries of outbound mail " + mail.getPrimaryKey(), e);
+			return;
+		}
+		if (ListUtil.isEmpty(deliveries)) {
+			return;
+		}
+
+		Map<String, String> failures = new HashMap<String, String>();
+		for (MessageDelivery delivery: deliveries) {
+			String status = delivery.getStatus();
+			if (MessageDelivery.STATUS_HELD.equals(status) || MessageDelivery.STATUS_PENDING.equals(status) ||
+					MessageDelivery.STATUS_SENDING.equals(status)) {
+				return;
+			}
+			if (MessageDelivery.STATUS_FAILED.equals(status)) {
+				failures.put(delivery.getRecipient(), delivery.getError());
+			}
+		}
+
+		OutboundMailCallback callback = callbacks.remove(mail.getPrimaryKey());
+		if (callback == null) {
+			return;
+		}
+
+		try {
+			callback.onProcessed(mail, deliveries.size(), failures);
+		} catch (Exception e) {
+			getLogger().log(Level.WARNING, "Error notifying about processed outbound mail " + mail.getPrimaryKey(), e);
+		}
+	}
+
+	/**
+	 * Removes mails older than retention period if they have no deliveries left to try, at most once an hour. Deliveries of archived messages
+	 * are kept.
+	 */
+	private void purge() {
+		long now = System.currentTimeMillis();
+		synchronized (this) {
+			if (now - lastPurge < HOUR) {
+				return;
+			}
+			lastPurge = now;
+		}
+
+		Collection<OutboundMail> expired = null;
+		try {
+			expired = getOutboundMailHome().findAllCreatedBefore(new Timestamp(now - getIntProperty(PROP_RETENTION_DAYS, DEFAULT_RETENTION_DAYS) * DAY));
+		} catch (FinderException e) {
+		} catch (Exception e) {
+			getLogger().log(Level.WARNING, "Error getting expired outbound mails", e);
+		}
+		if (ListUtil.isEmpty(expired)) {
+			return;
+		}
+
+		for (OutboundMail mail: expired) {
+			try {
+				Collection<MessageDelivery> deliveries = null;
+				try {
+					deliveries = getMessageDeliveryHome().findAllByOutboundMail(mail);
+				} catch (FinderException e) {}
+
+				boolean finished = true;
+				if (!ListUtil.isEmpty(deliveries)) {
+					for (MessageDelivery delivery: deliveries) {
+						String status = delivery.getStatus();
+						finished = finished && !MessageDelivery.STATUS_PENDING.equals(status) && !MessageDelivery.STATUS_SENDING.equals(status);
+					}
+				}
+				if (!finished) {
+					continue;
+				}
+
+				callbacks.remove(mail.getPrimaryKey());
+				remove(mail, deliveries, true);
+			} catch (Exception e) {
+				getLogger().log(Level.WARNING, "Error removing outbound mail " + mail.getPrimaryKey(), e);
+			}
+		}
+	}
+
+	/**
+	 * @param keepArchived - if <code>true</code>, deliveries of archived message are kept, only detached from the mail
+	 */
+	private void remove(OutboundMail mail, Collection<MessageDelivery> deliveries, boolean keepArchived) throws Exception {
+		if (!ListUtil.isEmpty(deliveries)) {
+			for (MessageDelivery delivery: deliveries) {
+				if (keepArchived && delivery.getMessageId() > 0) {
+					delivery.removeOutboundMail();
+					delivery.store();
+				} else {
+					delivery.remove();
+				}
+			}
+		}
+
+		Collection<ICFile> attachments = mail.getAttachments();
+		if (!ListUtil.isEmpty(attachments)) {
+			boolean archived = mail.getMessage() != null;
+			for (ICFile attachment: attachments) {
+				mail.removeAttachment(attachment);
+				if (!archived) {
+					attachment.remove();
+				}
+			}
+		}
+
+		mail.remove();
+	}
+
+	private String getHeaders(Map<String, String> headers) {
+		if (headers == null || headers.isEmpty()) {
+			return null;
+		}
+
+		StringBuilder value = new StringBuilder();
+		for (Map.Entry<String, String> header: headers.entrySet()) {
+			if (!StringUtil.isEmpty(header.getKey()) && !StringUtil.isEmpty(header.getValue())) {
+				value.append(header.getKey()).append(": ").append(header.getValue().replace('\r', ' ').replace('\n', ' ')).append('\n');
+			}
+		}
+		return value.toString();
+	}
+
+	private Map<String, String> getHeaders(String headers) {
+		if (StringUtil.isEmpty(headers)) {
+			return null;
+		}
+
+		Map<String, String> values = new LinkedHashMap<String, String>();
+		for (String header: headers.split("\n")) {
+			int index = header.indexOf(CoreConstants.COLON);
+			if (index > 0) {
+				values.put(header.substring(0, index).trim(), header.substring(index + 1).trim());
+			}
+		}
+		return values;
+	}
+
+	private String getNodeName() {
+		String host = null;
+		try {
+			host = InetAddress.getLocalHost().getHostName();
+		} catch (Exception e) {}
+		host = StringUtil.isEmpty(host) ? "node" : host.length() > 60 ? host.substring(0, 60) : host;
+		return host + CoreConstants.MINUS + UUID.randomUUID().toString();
+	}
+
+	private synchronized ScheduledExecutorService getPoller() {
+		if (poller == null) {
+			poller = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "outbound_mail_poller");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+			long interval = getLongProperty(PROP_POLL_INTERVAL, DEFAULT_POLL_INTERVAL);
+			poller.scheduleWithFixedDelay(new Runnable() {
+				public void run() {
+					poll();
+				}
+			}, interval, interval, TimeUnit.MILLISECONDS);
+		}
+		return poller;
+	}
+
+	private synchronized ThreadPoolExecutor getWorkers() {
+		if (workers == null) {
+			int size = Math.max(getIntProperty(PROP_WORKERS, DEFAULT_WORKERS), 1);
+			workers = new ThreadPoolExecutor(size, size, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+				private final AtomicInteger counter = new AtomicInteger();
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "outbound_mail_worker_" + counter.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return workers;
+	}
+
+	private synchronized void shutdown() {
+		shutdown = true;
+		if (poller != null) {
+			poller.shutdownNow();
+		}
+		if (workers != null) {
+			//	Claimed deliveries of unfinished mails are sent again when their lease expires
+			workers.shutdown();
+		}
+	}
+
+	private int getIntProperty(String key, int defaultValue) {
+		try {
+			return Integer.valueOf(getApplication().getSettings().getProperty(key, String.valueOf(defaultValue)));
+		} catch (NumberFormatException e) {
+			getLogger().warning("Invalid value of " + key + ", using " + defaultValue);
+			return defaultValue;
+		}
+	}
+
+	private long getLongProperty(String key, long defaultValue) {
+		try {
+			return Long.valueOf(getApplication().getSettings().getProperty(key, String.valueOf(defaultValue)));
+		} catch (NumberFormatException e) {
+			getLogger().warning("Invalid value of " + key + ", using " + defaultValue);
+			return defaultValue;
+		}
+	}
+
+	private SMTPDeliveryEngine getDeliveryEngine() {
+		if (deliveryEngine == null) {
+			ELUtil.getInstance().autowire(this);
+		}
+		return deliveryEngine;
+	}
+
+	private OutboundMailHome getOutboundMailHome() throws Exception {
+		return (OutboundMailHome) IDOLookup.getHome(OutboundMail.class);
+	}
+
+	private MessageDeliveryHome getMessageDeliveryHome() throws Exception {
+		return (MessageDeliveryHome) IDOLookup.getHome(MessageDelivery.class);
+	}
+
+}
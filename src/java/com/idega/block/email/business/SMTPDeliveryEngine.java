@@ -0,0 +1,554 @@
+package com.idega.block.email.business;
+
+import java.io.File;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+
+import javax.activation.DataHandler;
+import javax.activation.FileDataSource;
+import javax.mail.Address;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Part;
+import javax.mail.SendFailedException;
+import javax.mail.Session;
+import javax.mail.Transport;
+import javax.mail.internet.AddressException;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeMultipart;
+import javax.mail.internet.MimeUtility;
+
+import org.springframework.beans.factory.config.BeanDefinition;
+import org.springframework.context.ApplicationEvent;
+import org.springframework.context.ApplicationListener;
+import org.springframework.context.annotation.Scope;
+import org.springframework.stereotype.Service;
+
+import com.idega.core.business.DefaultSpringBean;
+import com.idega.core.file.util.MimeTypeUtil;
+import com.idega.core.messaging.EmailMessage;
+import com.idega.idegaweb.IWMainApplicationShutdownEvent;
+import com.idega.util.ArrayUtil;
+import com.idega.util.CoreConstants;
+import com.idega.util.ListUtil;
+import com.idega.util.StringUtil;
+
+/**
+ * Delivers one message to many recipients over pooled SMTP connections. Connections are authenticated once and kept open, many messages are sent
+ * per connection and recipients are split between the configured number of parallel connections. Message is built once, every connection sends
+ * its own copy of it. Optionally recipients are grouped into envelopes (one DATA for many RCPT TO) - then the message is not personalized, its To
+ * header is the sender's address.
+ */
+@Service
+@Scope(BeanDefinition.SCOPE_SINGLETON)
+public class SMTPDeliveryEngine extends DefaultSpringBean implements ApplicationListener {
+
+	public static final String	PROP_CONNECTIONS = "email_smtp_connections",
+								PROP_GROUP_RECIPIENTS = "email_smtp_group_recipients",
+								PROP_ENVELOPE_SIZE = "email_smtp_envelope_size",
+								PROP_MESSAGES_PER_CONNECTION = "email_smtp_messages_per_connection",
+								PROP_IDLE_TIMEOUT = "email_smtp_idle_timeout",
+								PROP_PORT = "email_smtp_port",
+								PROP_USER = "email_smtp_user",
+								PROP_PASSWORD = "email_smtp_password";
+
+	private static final int DEFAULT_CONNECTIONS = 4, DEFAULT_ENVELOPE_SIZE = 50, DEFAULT_MESSAGES_PER_CONNECTION = 1000, MAX_ERROR_LENGTH = 1000;
+	private static final long DEFAULT_IDLE_TIMEOUT = 60000, SOCKET_TIMEOUT = 60000;
+
+	private static final String SMTP = "smtp";
+
+	/**
+	 * Beginning of error of recipient which was rejected permanently (invalid address or refused by server), sending to it again makes no sense
+	 */
+	public static final String REJECTED = "Rejected: ";
+
+	private static final List<String> ADDRESS_HEADERS = Arrays.asList("to", "cc", "reply-to");
+
+	private final ConcurrentHashMap<String, ConcurrentLinkedQueue<PooledTransport>> idleTransports =
+			new ConcurrentHashMap<String, ConcurrentLinkedQueue<PooledTransport>>();
+
+	private ThreadPoolExecutor senders;
+
+	private volatile boolean shutdown;
+
+	public void onApplicationEvent(ApplicationEvent event) {
+		if (event instanceof IWMainApplicationShutdownEvent) {
+			shutdown();
+		}
+	}
+
+	/**
+	 * Recipients are grouped into envelopes if it is enabled by setting {@link #PROP_GROUP_RECIPIENTS}
+	 *
+	 * @see #deliver(EmailMessage, Collection, boolean)
+	 */
+	public Map<String, String> deliver(EmailMessage email, Collection<String> recipients) {
+		return deliver(email, recipients, getApplication().getSettings().getBoolean(PROP_GROUP_RECIPIENTS, false));
+	}
+
+	/**
+	 * Sends the message to every recipient. Sender, subject, body, mail type and attached files of the message are used; its recipients are not.
+	 *
+	 * @param grouped - if <code>true</code>, many recipients share one envelope and message is not personalized
+	 * @return errors of recipients to whom message was not sent, recipients which are not in the map were sent the message
+	 * @see #isRejected(String)
+	 */
+	public Map<String, String> deliver(EmailMessage email, Collection<String> recipients, boolean grouped) {
+		return deliver(email, recipients, grouped, null, null, null);
+	}
+
+	/**
+	 * @param headers - additional headers of the message (e.g. To and Cc of grouped message, Reply-To), can be <code>null</code>
+	 * @param user - account to authenticate, if <code>null</code> account from settings is used
+	 * @see #deliver(EmailMessage, Collection, boolean)
+	 */
+	public Map<String, String> deliver(final EmailMessage email, Collection<String> recipients, final boolean grouped,
+			final Map<String, String> headers, String user, String password) {
+		Map<String, String> failures = new HashMap<String, String>();
+		if (email == null || ListUtil.isEmpty(recipients)) {
+			return failures;
+		}
+
+		String mailServer = email.getMailServer();
+		if (StringUtil.isEmpty(mailServer)) {
+			mailServer = getApplication().getSettings().getProperty(CoreConstants.PROP_SYSTEM_SMTP_MAILSERVER);
+		}
+		if (StringUtil.isEmpty(mailServer)) {
+			getLogger().warning("There is no mail server defined to send emails thru");
+			for (String recipient: recipients) {
+				failures.put(recipient, "Mail server is not defined");
+			}
+			return failures;
+		}
+		if (StringUtil.isEmpty(user)) {
+			user = getApplication().getSettings().getProperty(PROP_USER);
+			password = getApplication().getSettings().getProperty(PROP_PASSWORD);
+		}
+		final SMTPServer server = new SMTPServer(mailServer, user, password);
+
+		List<String> addresses = new ArrayList<String>(new LinkedHashSet<String>(recipients));
+		addresses.remove(null);
+		if (addresses.isEmpty()) {
+			return failures;
+		}
+		int envelopeSize = grouped ? Math.max(getIntProperty(PROP_ENVELOPE_SIZE, DEFAULT_ENVELOPE_SIZE), 1) : 1;
+		List<List<String>> envelopes = new ArrayList<List<String>>(addresses.size() / envelopeSize + 1);
+		for (int i = 0; i < addresses.size(); i += envelopeSize) {
+			envelopes.add(addresses.subList(i, Math.min(i + envelopeSize, addresses.size())));
+		}
+
+		int connections = Math.min(Math.max(getIntProperty(PROP_CONNECTIONS, DEFAULT_CONNECTIONS), 1), envelopes.size());
+		int chunkSize = (envelopes.size() + connections - 1) / connections;
+
+		//	Message (and its attachments) is read once, connections get copies of it: message is changed while sending and is not thread safe
+		List<MimeMessage> messages = new ArrayList<MimeMessage>(connections);
+		try {
+			MimeMessage message = getMimeMessage(getSession(server), email, headers);
+			if (grouped && message.getHeader("To") == null) {
+				message.setRecipients(Message.RecipientType.TO, email.getFromAddress());
+			}
+			messages.add(message);
+			for (int i = chunkSize; i < envelopes.size(); i += chunkSize) {
+				messages.add(new MimeMessage(message));
+			}
+		} catch (Exception e) {
+			getLogger().log(Level.WARNING, "Error creating message " + email, e);
+			addFailures(failures, addresses, e);
+			return failures;
+		}
+
+		if (messages.size() <= 1) {
+			failures.putAll(send(server, messages.get(0), email, envelopes, grouped));
+			return failures;
+		}
+
+		//	Envelopes are split between connections evenly
+		List<Callable<Map<String, String>>> tasks = new ArrayList<Callable<Map<String, String>>>(messages.size());
+		for (int i = 0; i < envelopes.size(); i += chunkSize) {
+			final List<List<String>> chunk = envelopes.subList(i, Math.min(i + chunkSize, envelopes.size()));
+			final MimeMessage message = messages.get(i / chunkSize);
+			tasks.add(new Callable<Map<String, String>>() {
+				public Map<String, String> call() throws Exception {
+					return send(server, message, email, chunk, grouped);
+				}
+			});
+		}
+
+		try {
+			List<Future<Map<String, String>>> results = getSenders().invokeAll(tasks);
+			for (int i = 0; i < results.size(); i++) {
+				try {
+					failures.putAll(results.get(i).get());
+				} catch (Exception e) {
+					getLogger().log(Level.WARNING, "Error sending message " + email, e);
+					for (int j = i * chunkSize; j < Math.min((i + 1) * chunkSize, envelopes.size()); j++) {
+						addFailures(failures, envelopes.get(j), e);
+					}
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			getLogger().warning("Interrupted while sending message " + email);
+			addFailures(failures, addresses, e);
+		}
+
+		return failures;
+	}
+
+	/**
+	 * @param message - message used only by this call
+	 */
+	private Map<String, String> send(SMTPServer server, MimeMessage message, EmailMessage email, List<List<String>> envelopes, boolean grouped) {
+		Map<String, String> failures = new HashMap<String, String>();
+
+		int messagesPerConnection = getIntProperty(PROP_MESSAGES_PER_CONNECTION, DEFAULT_MESSAGES_PER_CONNECTION);
+		PooledTransport transport = null;
+		try {
+			for (List<String> envelope: envelopes) {
+				List<Address> addresses = new ArrayList<Address>(envelope.size());
+				for (String recipient: envelope) {
+					try {
+						addresses.add(new InternetAddress(recipient, true));
+					} catch (AddressException e) {
+						failures.put(recipient, getError(REJECTED, e));
+					}
+				}
+				if (addresses.isEmpty()) {
+					continue;
+				}
+				Address[] to = addresses.toArray(new Address[addresses.size()]);
+
+				//	Broken connection is replaced once, then recipients of envelope are marked as failed
+				for (int attempt = 0; attempt < 2; attempt++) {
+					try {
+						if (transport == null) {
+							transport = borrow(server);
+						}
+						if (!grouped) {
+							message.setRecipients(Message.RecipientType.TO, to);
+						}
+						transport.transport.sendMessage(message, to);
+						transport.sent++;
+						break;
+					} catch (SendFailedException e) {
+						//	Some recipients were rejected, connection can be used further. Message is still sent to the accepted recipients of
+						//	envelope (mail.smtp.sendpartial): only rejected ones are failed, valid unsent are the temporarily refused ones
+						transport.sent++;
+						addFailures(failures, e.getInvalidAddresses(), REJECTED, e);
+						addFailures(failures, e.getValidUnsentAddresses(), null, e);
+						if (ArrayUtil.isEmpty(e.getInvalidAddresses()) && ArrayUtil.isEmpty(e.getValidUnsentAddresses()) &&
+								ArrayUtil.isEmpty(e.getValidSentAddresses())) {
+							addFailures(failures, to, null, e);
+						}
+						break;
+					} catch (MessagingException e) {
+						close(transport);
+						transport = null;
+						if (attempt > 0) {
+							getLogger().log(Level.WARNING, "Error sending message " + email + " thru " + server.host, e);
+							addFailures(failures, to, null, e);
+						}
+					}
+				}
+
+				if (transport != null && transport.sent >= messagesPerConnection) {
+					close(transport);
+					transport = null;
+				}
+			}
+		} finally {
+			release(server, transport);
+		}
+
+		return failures;
+	}
+
+	/**
+	 * @return message as it is sent by this engine, without recipients
+	 */
+	public MimeMessage getMimeMessage(EmailMessage email, Map<String, String> headers) throws MessagingException, UnsupportedEncodingException {
+		return getMimeMessage(email, headers, null);
+	}
+
+	/**
+	 * @param attachments - files to attach, if <code>null</code> - attached files of the message
+	 * @return message as it is sent by this engine, without recipients
+	 */
+	public MimeMessage getMimeMessage(EmailMessage email, Map<String, String> headers, Collection<File> attachments) throws MessagingException,
+		UnsupportedEncodingException {
+		String mailServer = email.getMailServer();
+		return getMimeMessage(getSession(new SMTPServer(StringUtil.isEmpty(mailServer) ?
+				getApplication().getSettings().getProperty(CoreConstants.PROP_SYSTEM_SMTP_MAILSERVER) :
+				mailServer, null, null)), email, headers, attachments);
+	}
+
+	private MimeMessage getMimeMessage(Session session, EmailMessage email, Map<String, String> headers) throws MessagingException,
+		UnsupportedEncodingException {
+		return getMimeMessage(session, email, headers, null);
+	}
+
+	private MimeMessage getMimeMessage(Session session, EmailMessage email, Map<String, String> headers, Collection<File> attachments)
+		throws MessagingException, UnsupportedEncodingException {
+		MimeMessage message = new MimeMessage(session);
+		message.setFrom(StringUtil.isEmpty(email.getSenderName()) ?
+				new InternetAddress(email.getFromAddress()) :
+				new InternetAddress(email.getFromAddress(), email.getSenderName(), CoreConstants.ENCODING_UTF8));
+		message.setSubject(email.getSubject(), CoreConstants.ENCODING_UTF8);
+		message.setSentDate(new Date());
+
+		String body = email.getBody() == null ? CoreConstants.EMPTY : email.getBody();
+		String subtype = MimeTypeUtil.MIME_TYPE_HTML.equals(email.getMailType()) ? "html" : "plain";
+		attachments = attachments == null ? email.getAttachedFiles() : attachments;
+		if (ListUtil.isEmpty(attachments)) {
+			message.setText(body, CoreConstants.ENCODING_UTF8, subtype);
+		} else {
+			MimeMultipart multipart = new MimeMultipart();
+			MimeBodyPart text = new MimeBodyPart();
+			text.setText(body, CoreConstants.ENCODING_UTF8, subtype);
+			multipart.addBodyPart(text);
+			for (File attachment: attachments) {
+				MimeBodyPart part = new MimeBodyPart();
+				part.setDataHandler(new DataHandler(new FileDataSource(attachment)));
+				part.setFileName(MimeUtility.encodeText(attachment.getName(), CoreConstants.ENCODING_UTF8, null));
+				part.setDisposition(Part.ATTACHMENT);
+				multipart.addBodyPart(part);
+			}
+			message.setContent(multipart);
+		}
+
+		if (headers != null) {
+			for (Map.Entry<String, String> header: headers.entrySet()) {
+				String name = header.getKey(), value = header.getValue();
+				if (StringUtil.isEmpty(value)) {
+					continue;
+				}
+
+				if (ADDRESS_HEADERS.contains(name.toLowerCase())) {
+					message.setHeader(name, InternetAddress.toString(InternetAddress.parse(value, false), name.length() + 2));
+				} else {
+					message.setHeader(name, MimeUtility.fold(name.length() + 2, MimeUtility.encodeText(value, CoreConstants.ENCODING_UTF8, null)));
+				}
+			}
+		}
+
+		//	Headers and content are prepared once for all recipients
+		message.saveChanges();
+		return message;
+	}
+
+	private PooledTransport borrow(SMTPServer server) throws MessagingException {
+		long idleTimeout = getLongProperty(PROP_IDLE_TIMEOUT, DEFAULT_IDLE_TIMEOUT);
+		ConcurrentLinkedQueue<PooledTransport> idle = idleTransports.get(server.getKey());
+		PooledTransport transport = null;
+		while (idle != null && (transport = idle.poll()) != null) {
+			//	Connection is checked with RSET
+			if (System.currentTimeMillis() - transport.lastUsed < idleTimeout && transport.transport.isConnected()) {
+				return transport;
+			}
+			close(transport);
+		}
+
+		Transport smtp = getSession(server).getTransport(SMTP);
+		if (StringUtil.isEmpty(server.user)) {
+			smtp.connect();
+		} else {
+			smtp.connect(server.host, getIntProperty(PROP_PORT, -1), server.user, server.password);
+		}
+		return new PooledTransport(smtp);
+	}
+
+	private void release(SMTPServer server, PooledTransport transport) {
+		if (transport == null) {
+			return;
+		}
+
+		ConcurrentLinkedQueue<PooledTransport> idle = idleTransports.get(server.getKey());
+		if (idle == null) {
+			idle = new ConcurrentLinkedQueue<PooledTransport>();
+			ConcurrentLinkedQueue<PooledTransport> existing = idleTransports.putIfAbsent(server.getKey(), idle);
+			idle = existing == null ? idle : existing;
+		}
+
+		if (shutdown || idle.size() >= getIntProperty(PROP_CONNECTIONS, DEFAULT_CONNECTIONS)) {
+			close(transport);
+			return;
+		}
+
+		transport.lastUsed = System.currentTimeMillis();
+		idle.offer(transport);
+	}
+
+	private void close(PooledTransport transport) {
+		if (transport == null) {
+			return;
+		}
+
+		try {
+			transport.transport.close();
+		} catch (MessagingException e) {}
+	}
+
+	private Session getSession(SMTPServer server) {
+		Properties properties = new Properties();
+		properties.put("mail.smtp.host", server.host);
+		int port = getIntProperty(PROP_PORT, -1);
+		if (port > 0) {
+			properties.put("mail.smtp.port", String.valueOf(port));
+		}
+		properties.put("mail.smtp.auth", String.valueOf(!StringUtil.isEmpty(server.user)));
+		properties.put("mail.smtp.userset", Boolean.TRUE.toString());
+		properties.put("mail.smtp.quitwait", Boolean.FALSE.toString());
+		//	Rejected recipient does not prevent sending to the other recipients of the same envelope
+		properties.put("mail.smtp.sendpartial", Boolean.TRUE.toString());
+		properties.put("mail.smtp.connectiontimeout", String.valueOf(SOCKET_TIMEOUT));
+		properties.put("mail.smtp.timeout", String.valueOf(SOCKET_TIMEOUT));
+		return Session.getInstance(properties);
+	}
+
+	private synchronized ExecutorService getSenders() {
+		if (senders == null || senders.isShutdown()) {
+			int connections = Math.max(getIntProperty(PROP_CONNECTIONS, DEFAULT_CONNECTIONS), 1);
+			senders = new ThreadPoolExecutor(connections, connections, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+				private final AtomicInteger counter = new AtomicInteger();
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "smtp_sender_" + counter.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			senders.allowCoreThreadTimeOut(true);
+		} else {
+			//	Number of connections can be changed in settings
+			int connections = Math.max(getIntProperty(PROP_CONNECTIONS, DEFAULT_CONNECTIONS), 1);
+			if (senders.getMaximumPoolSize() != connections) {
+				if (connections > senders.getMaximumPoolSize()) {
+					senders.setMaximumPoolSize(connections);
+					senders.setCorePoolSize(connections);
+				} else {
+					senders.setCorePoolSize(connections);
+					senders.setMaximumPoolSize(connections);
+				}
+			}
+		}
+		return senders;
+	}
+
+	private synchronized void shutdown() {
+		shutdown = true;
+		if (senders != null) {
+			senders.shutdown();
+		}
+		for (ConcurrentLinkedQueue<PooledTransport> idle: idleTransports.values()) {
+			PooledTransport transport = null;
+			while ((transport = idle.poll()) != null) {
+				close(transport);
+			}
+		}
+	}
+
+	private void addFailures(Map<String, String> failures, Collection<String> recipients, Exception e) {
+		String error = getError(e);
+		for (String recipient: recipients) {
+			failures.put(recipient, error);
+		}
+	}
+
+	private void addFailures(Map<String, String> failures, Address[] recipients, String prefix, Exception e) {
+		if (ArrayUtil.isEmpty(recipients)) {
+			return;
+		}
+
+		String error = getError(prefix, e);
+		for (Address recipient: recipients) {
+			failures.put(recipient instanceof InternetAddress ? ((InternetAddress) recipient).getAddress() : recipient.toString(), error);
+		}
+	}
+
+	private String getError(Exception e) {
+		return getError(null, e);
+	}
+
+	private String getError(String prefix, Exception e) {
+		String error = e.getMessage() == null ? e.getClass().getName() : e.getMessage();
+		error = prefix == null ? error : prefix + error;
+		return error.length() <= MAX_ERROR_LENGTH ? error : error.substring(0, MAX_ERROR_LENGTH);
+	}
+
+	/**
+	 * @param error - error of recipient returned by delivery
+	 * @return <code>true</code> if recipient was rejected permanently and message should not be sent to it again
+	 */
+	public static boolean isRejected(String error) {
+		return error != null && error.startsWith(REJECTED);
+	}
+
+	private int getIntProperty(String key, int defaultValue) {
+		try {
+			return Integer.valueOf(getApplication().getSettings().getProperty(key, String.valueOf(defaultValue)));
+		} catch (NumberFormatException e) {
+			getLogger().warning("Invalid value of " + key + ", using " + defaultValue);
+			return defaultValue;
+		}
+	}
+
+	private long getLongProperty(String key, long defaultValue) {
+		try {
+			return Long.valueOf(getApplication().getSettings().getProperty(key, String.valueOf(defaultValue)));
+		} catch (NumberFormatException e) {
+			getLogger().warning("Invalid value of " + key + ", using " + defaultValue);
+			return defaultValue;
+		}
+	}
+
+	private static class SMTPServer {
+
+		private final String host, user, password;
+
+		private SMTPServer(String host, String user, String password) {
+			this.host = host;
+			this.user = user;
+			this.password = password;
+		}
+
+		/**
+		 * Connections are pooled per server and account
+		 */
+		private String getKey() {
+			return StringUtil.isEmpty(user) ? host : user + CoreConstants.AT + host;
+		}
+	}
+
+	private static class PooledTransport {
+
+		private final Transport transport;
+
+		private long lastUsed;
+		private int sent;
+
+		private PooledTransport(Transport transport) {
+			this.transport = transport;
+		}
+	}
+
+}
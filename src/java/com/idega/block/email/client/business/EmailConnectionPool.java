@@ -0,0 +1,298 @@
+package com.idega.block.email.client.business;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.logging.Level;
+
+import javax.mail.Folder;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.Store;
+
+import org.springframework.beans.factory.config.BeanDefinition;
+import org.springframework.context.ApplicationEvent;
+import org.springframework.context.ApplicationListener;
+import org.springframework.context.annotation.Scope;
+import org.springframework.stereotype.Service;
+
+import com.idega.core.business.DefaultSpringBean;
+import com.idega.idegaweb.IWMainApplicationSettings;
+import com.idega.idegaweb.IWMainApplicationShutdownEvent;
+import com.idega.util.CoreConstants;
+import com.idega.util.StringUtil;
+
+/**
+ * Keeps logged in IMAP stores with opened folders, so scans of the same mailbox do not need to connect and login each time. Idle connections are
+ * checked with NOOP periodically and closed after idle timeout. POP3 connections are not pooled: POP3 folder shows new messages and removes
+ * deleted ones only when it is reopened.
+ */
+@Service
+@Scope(BeanDefinition.SCOPE_SINGLETON)
+public class EmailConnectionPool extends DefaultSpringBean implements ApplicationListener {
+
+	private static final String PROP_POOL_ENABLED = "email_connection_pool_enabled",
+								PROP_IDLE_TIMEOUT = "email_connection_pool_idle_timeout",
+								PROP_KEEP_ALIVE = "email_connection_pool_keep_alive",
+								PROP_MAX_IDLE = "email_connection_pool_max_idle";
+
+	private static final long DEFAULT_IDLE_TIMEOUT = 15 * 60000, DEFAULT_KEEP_ALIVE = 5 * 60000, EVICTION_INTERVAL = 60000;
+	private static final int DEFAULT_MAX_IDLE = 2;
+
+	private final Map<String, LinkedList<PooledConnection>> idleConnections = new HashMap<String, LinkedList<PooledConnection>>();
+
+	private Timer evictionTimer;
+
+	/**
+	 * Sets session, store and opened folder of idle connection to the same mailbox, checking if connection is still alive
+	 *
+	 * @return <code>true</code> if pooled connection was provided, <code>false</code> if caller has to connect
+	 */
+	public boolean borrow(EmailParams params, String folderName) {
+		if (!isPooled(params)) {
+			return false;
+		}
+
+		String key = getKey(params);
+		PooledConnection connection = null;
+		while ((connection = pollIdle(key, params.getPassword(), folderName)) != null) {
+			if (connection.isAlive()) {
+				params.setSession(connection.session);
+				params.setStore(connection.store);
+				params.setFolder(connection.folder);
+				params.setLoggedOut(false);
+				return true;
+			}
+
+			connection.close();
+		}
+
+		return false;
+	}
+
+	/**
+	 * Returns connection to the pool: deleted messages are expunged and folder is kept open
+	 *
+	 * @return <code>true</code> if connection was pooled, <code>false</code> if caller has to close it
+	 */
+	public boolean release(EmailParams params) {
+		if (!isPooled(params) || params.getStore() == null || params.getFolder() == null || !params.getFolder().isOpen()) {
+			return false;
+		}
+
+		try {
+			params.getFolder().expunge();
+		} catch (MessagingException e) {
+			getLogger().log(Level.WARNING, "Error expunging deleted messages at " + params.getUsername() + CoreConstants.AT + params.getHostname(), e);
+			return false;
+		}
+
+		String key = getKey(params);
+		synchronized (idleConnections) {
+			LinkedList<PooledConnection> connections = idleConnections.get(key);
+			if (connections == null) {
+				connections = new LinkedList<PooledConnection>();
+				idleConnections.put(key, connections);
+			}
+			if (connections.size() >= getIntProperty(PROP_MAX_IDLE, DEFAULT_MAX_IDLE)) {
+				return false;
+			}
+
+			connections.addFirst(new PooledConnection(params));
+			startEvictionTimer();
+		}
+
+		return true;
+	}
+
+	private PooledConnection pollIdle(String key, String password, String folderName) {
+		synchronized (idleConnections) {
+			LinkedList<PooledConnection> connections = idleConnections.get(key);
+			if (connections == null) {
+				return null;
+			}
+
+			for (Iterator<PooledConnection> iter = connections.iterator(); iter.hasNext();) {
+				PooledConnection connection = iter.next();
+				if ((connection.password == null ? password == null : connection.password.equals(password)) &&
+						connection.folder.getFullName().equalsIgnoreCase(folderName)) {
+					iter.remove();
+					return connection;
+				}
+			}
+		}
+		return null;
+	}
+
+	private boolean isPooled(EmailParams params) {
+		if (params == null || StringUtil.isEmpty(params.getProtocol()) || !params.getProtocol().toLowerCase().startsWith("imap")) {
+			return false;
+		}
+
+		return getSettings().getBoolean(PROP_POOL_ENABLED, true);
+	}
+
+	private String getKey(EmailParams params) {
+		return params.getProtocol().toLowerCase() + "://" + params.getUsername() + CoreConstants.AT + params.getHostname();
+	}
+
+	private IWMainApplicationSettings getSettings() {
+		return getApplication().getSettings();
+	}
+
+	private int getIntProperty(String key, int defaultValue) {
+		try {
+			return Integer.valueOf(getSettings().getProperty(key, String.valueOf(defaultValue)));
+		} catch (NumberFormatException e) {
+			getLogger().warning("Invalid value of " + key + ", using " + defaultValue);
+			return defaultValue;
+		}
+	}
+
+	private long getLongProperty(String key, long defaultValue) {
+		try {
+			return Long.valueOf(getSettings().getProperty(key, String.valueOf(defaultValue)));
+		} catch (NumberFormatException e) {
+			getLogger().warning("Invalid value of " + key + ", using " + defaultValue);
+			return defaultValue;
+		}
+	}
+
+	private synchronized void startEvictionTimer() {
+		if (evictionTimer != null) {
+			return;
+		}
+
+		evictionTimer = new Timer(EmailDaemon.THREAD_NAME + "_connections", true);
+		evictionTimer.schedule(new TimerTask() {
+			@Override
+			public void run() {
+				evictIdleConnections();
+			}
+		}, EVICTION_INTERVAL, EVICTION_INTERVAL);
+	}
+
+	private void evictIdleConnections() {
+		long idleTimeout = getLongProperty(PROP_IDLE_TIMEOUT, DEFAULT_IDLE_TIMEOUT);
+		long keepAlive = getLongProperty(PROP_KEEP_ALIVE, DEFAULT_KEEP_ALIVE);
+		long now = System.currentTimeMillis();
+
+		List<PooledConnection> toClose = new ArrayList<PooledConnection>();
+		Map<String, List<PooledConnection>> toCheck = new HashMap<String, List<PooledConnection>>();
+		synchronized (idleConnections) {
+			for (Map.Entry<String, LinkedList<PooledConnection>> entry: idleConnections.entrySet()) {
+				for (Iterator<PooledConnection> iter = entry.getValue().iterator(); iter.hasNext();) {
+					PooledConnection connection = iter.next();
+					if (now - connection.released > idleTimeout) {
+						iter.remove();
+						toClose.add(connection);
+					} else if (now - connection.lastChecked > keepAlive) {
+						iter.remove();
+						List<PooledConnection> connections = toCheck.get(entry.getKey());
+						if (connections == null) {
+							connections = new ArrayList<PooledConnection>();
+							toCheck.put(entry.getKey(), connections);
+						}
+						connections.add(connection);
+					}
+				}
+			}
+		}
+
+		for (PooledConnection connection: toClose) {
+			connection.close();
+		}
+
+		//	Keep alive: NOOP is sent while checking connection
+		for (Map.Entry<String, List<PooledConnection>> entry: toCheck.entrySet()) {
+			for (PooledConnection connection: entry.getValue()) {
+				if (connection.isAlive()) {
+					synchronized (idleConnections) {
+						LinkedList<PooledConnection> connections = idleConnections.get(entry.getKey());
+						if (connections != null) {
+							connections.addLast(connection);
+						}
+					}
+				} else {
+					connection.close();
+				}
+			}
+		}
+	}
+
+	public void closeAll() {
+		List<PooledConnection> connections = new ArrayList<PooledConnection>();
+		synchronized (idleConnections) {
+			for (LinkedList<PooledConnection> idle: idleConnections.values()) {
+				connections.addAll(idle);
+			}
+			idleConnections.clear();
+		}
+		for (PooledConnection connection: connections) {
+			connection.close();
+		}
+
+		synchronized (this) {
+			if (evictionTimer != null) {
+				evictionTimer.cancel();
+				evictionTimer = null;
+			}
+		}
+	}
+
+	@Override
+	public void onApplicationEvent(ApplicationEvent event) {
+		if (event instanceof IWMainApplicationShutdownEvent) {
+			closeAll();
+		}
+	}
+
+	private class PooledConnection {
+
+		private final Session session;
+		private final Store store;
+		private final Folder folder;
+		private final String password;
+		private final long released;
+		private long lastChecked;
+
+		private PooledConnection(EmailParams params) {
+			this.session = params.getSession();
+			this.store = params.getStore();
+			this.folder = params.getFolder();
+			this.password = params.getPassword();
+			this.released = System.currentTimeMillis();
+			this.lastChecked = released;
+		}
+
+		/**
+		 * IMAP store checks connection by sending NOOP
+		 */
+		private boolean isAlive() {
+			try {
+				boolean alive = store.isConnected() && folder.isOpen();
+				lastChecked = System.currentTimeMillis();
+				return alive;
+			} catch (Exception e) {
+				return false;
+			}
+		}
+
+		private void close() {
+			try {
+				if (folder.isOpen()) {
+					folder.close(true);
+				}
+			} catch (Exception e) {}
+			try {
+				store.close();
+			} catch (Exception e) {}
+		}
+	}
+
+}
@@ -2,11 +2,21 @@ package com.idega.block.email.client.business;
 
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.UIDFolder;
+
 import org.springframework.beans.BeansException;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.config.BeanDefinition;
@@ -22,8 +32,10 @@ import com.idega.idegaweb.IWMainApplication;
 import com.idega.idegaweb.IWMainApplicationSettings;
 import com.idega.idegaweb.IWMainApplicationShutdownEvent;
 import com.idega.idegaweb.IWMainApplicationStartedEvent;
+import com.idega.util.ArrayUtil;
 import com.idega.util.CoreConstants;
 import com.idega.util.EventTimer;
+import com.idega.util.ListUtil;
 import com.idega.util.StringUtil;
 import com.idega.util.datastructures.map.MapUtil;
 
@@ -41,8 +53,8 @@ public class EmailDaemon implements ApplicationContextAware, ApplicationListener
 	private static final Logger LOGGER = Logger.getLogger(EmailDaemon.class.getName());
 	public static final String THREAD_NAME = "email_daemon";
 
-	private EventTimer emailTimer;
-	private final ReentrantLock lock = new ReentrantLock();
+	private ScheduledThreadPoolExecutor scanners;
+	private List<MailboxAccount> accounts = Collections.emptyList();
 
 	@Autowired
 	private EmailSubjectPatternFinder emailFinder;
@@ -51,88 +63,264 @@ public class EmailDaemon implements ApplicationContextAware, ApplicationListener
 	public static final String PROP_MAIL_HOST = "mail_host";
 	private static final String PROP_SYSTEM_PROTOCOL = "mail_protocol";
 	private static final String PROP_SYSTEM_PASSWORD = "mail_password";
+	private static final String PROP_PUSH_MODE = "email_daemon_push_mode";
+	private static final String PROP_CHECK_INTERVAL = "email_daemon_check_interval";
 
-	public void start() {
+	/**
+	 * Comma separated keys of additional mailboxes. Each of them is described by properties "email_daemon_account.KEY.host",
+	 * "email_daemon_account.KEY.account", "email_daemon_account.KEY.password", "email_daemon_account.KEY.protocol" and optionally
+	 * "email_daemon_account.KEY.check_interval", "email_daemon_account.KEY.push_mode"
+	 */
+	private static final String PROP_ACCOUNTS = "email_daemon_accounts";
+	private static final String PROP_ACCOUNT_PREFIX = "email_daemon_account.";
+	private static final String PROP_POOL_SIZE = "email_daemon_pool_size";
 
-		try {
-			long defaultCheckInterval = EventTimer.THREAD_SLEEP_5_MINUTES;
-			String checkIntervalStr = IWMainApplication.getDefaultIWMainApplication().getSettings()
-				.getProperty("email_daemon_check_interval", String.valueOf(defaultCheckInterval));
+	private static final String DEFAULT_ACCOUNT = "default";
+	private static final int DEFAULT_POOL_SIZE = 4;
 
-			long checkInterval;
+	private static final String IMAP_PROTOCOL = "imap";
 
-			if (CoreConstants.EMPTY.equals(checkIntervalStr))
-				checkInterval = defaultCheckInterval;
-			else
-				checkInterval = new Long(checkIntervalStr);
+	public synchronized void start() {
+		try {
+			IWMainApplicationSettings settings = IWMainApplication.getDefaultIWMainApplication().getSettings();
+			accounts = getAccounts(settings);
+			if (ListUtil.isEmpty(accounts)) {
+				return;
+			}
 
-			emailTimer = new EventTimer(checkInterval, THREAD_NAME);
-			emailTimer.addActionListener(this);
-			emailTimer.start(checkInterval);
+			int poolSize = Math.min(accounts.size(), Integer.valueOf(settings.getProperty(PROP_POOL_SIZE, String.valueOf(DEFAULT_POOL_SIZE))));
+			final AtomicInteger threadNumber = new AtomicInteger();
+			scanners = new ScheduledThreadPoolExecutor(Math.max(poolSize, 1), new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, THREAD_NAME + "_" + threadNumber.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
 
+			for (MailboxAccount account: accounts) {
+				if (account.isPushMode() && account.getProtocol().toLowerCase().startsWith(IMAP_PROTOCOL)) {
+					startIdleWatcher(account);
+				} else {
+					startPolling(account);
+				}
+			}
 		} catch (Exception e) {
 			LOGGER.log(Level.SEVERE, "Exception while starting up email daemon", e);
 		}
 	}
 
-	@Override
-	public void actionPerformed(ActionEvent event) {
-		String accountName = null;
+	private List<MailboxAccount> getAccounts(IWMainApplicationSettings settings) {
+		List<MailboxAccount> accounts = new ArrayList<MailboxAccount>();
+
+		long defaultCheckInterval = getCheckInterval(settings.getProperty(PROP_CHECK_INTERVAL), EventTimer.THREAD_SLEEP_5_MINUTES);
+		MailboxAccount defaultAccount = getAccount(DEFAULT_ACCOUNT, settings.getProperty(PROP_MAIL_HOST, CoreConstants.EMPTY),
+				settings.getProperty(CoreConstants.PROP_SYSTEM_ACCOUNT, CoreConstants.EMPTY), settings.getProperty(PROP_SYSTEM_PASSWORD, CoreConstants.EMPTY),
+				settings.getProperty(PROP_SYSTEM_PROTOCOL, CoreConstants.EMPTY), defaultCheckInterval, settings.getBoolean(PROP_PUSH_MODE, false));
+		if (defaultAccount != null) {
+			accounts.add(defaultAccount);
+		}
+
+		String keys = settings.getProperty(PROP_ACCOUNTS);
+		if (StringUtil.isEmpty(keys)) {
+			return accounts;
+		}
+
+		for (String key: keys.split(CoreConstants.COMMA)) {
+			key = key.trim();
+			if (StringUtil.isEmpty(key)) {
+				continue;
+			}
+
+			String prefix = PROP_ACCOUNT_PREFIX + key + CoreConstants.DOT;
+			MailboxAccount account = getAccount(key, settings.getProperty(prefix + "host", CoreConstants.EMPTY),
+					settings.getProperty(prefix + "account", CoreConstants.EMPTY), settings.getProperty(prefix + "password", CoreConstants.EMPTY),
+					settings.getProperty(prefix + "protocol", CoreConstants.EMPTY),
+					getCheckInterval(settings.getProperty(prefix + "check_interval"), defaultCheckInterval), settings.getBoolean(prefix + "push_mode", false));
+			if (account != null) {
+				accounts.add(account);
+			}
+		}
+
+		return accounts;
+	}
+
+	private MailboxAccount getAccount(String key, String host, String accountName, String password, String protocol, long checkInterval,
+			boolean pushMode) {
+		if (StringUtil.isEmpty(host)) {
+			return null;
+		}
+		if (StringUtil.isEmpty(accountName) || StringUtil.isEmpty(protocol) || StringUtil.isEmpty(password)) {
+			LOGGER.warning("Mail properties are empty for mailbox '" + key + "': either account name (" + accountName + ") or email protocol (" +
+					protocol + ") or password for the mailbox are not known!");
+			return null;
+		}
+
+		return new MailboxAccount(key, host, accountName, password, protocol, checkInterval, pushMode);
+	}
+
+	private long getCheckInterval(String checkIntervalStr, long defaultCheckInterval) {
+		if (StringUtil.isEmpty(checkIntervalStr)) {
+			return defaultCheckInterval;
+		}
+
+		try {
+			return Long.valueOf(checkIntervalStr);
+		} catch (NumberFormatException e) {
+			LOGGER.warning("Invalid check interval: " + checkIntervalStr);
+		}
+		return defaultCheckInterval;
+	}
+
+	void startPolling(final MailboxAccount account) {
+		ScheduledThreadPoolExecutor scanners = this.scanners;
+		if (scanners == null) {
+			return;
+		}
+
+		account.setScheduledScan(scanners.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				if (account.isScanAllowed()) {
+					scanInbox(account, null, true);
+				}
+			}
+		}, account.getCheckInterval(), account.getCheckInterval(), TimeUnit.MILLISECONDS));
+	}
+
+	private void startIdleWatcher(MailboxAccount account) {
+		long keepAlive = EventTimer.THREAD_SLEEP_5_MINUTES * 4;
+		String keepAliveStr = IWMainApplication.getDefaultIWMainApplication().getSettings()
+			.getProperty("email_daemon_idle_keep_alive", String.valueOf(keepAlive));
+		if (!StringUtil.isEmpty(keepAliveStr)) {
+			try {
+				keepAlive = Long.valueOf(keepAliveStr);
+			} catch (NumberFormatException e) {
+				LOGGER.warning("Invalid value of email_daemon_idle_keep_alive (" + keepAliveStr + "), using " + keepAlive);
+			}
+		}
+
+		ImapIdleWatcher idleWatcher = new ImapIdleWatcher(this, account, keepAlive);
+		account.setIdleWatcher(idleWatcher);
+		Thread watcherThread = new Thread(idleWatcher, THREAD_NAME + "_idle_" + account.getKey());
+		watcherThread.setDaemon(true);
+		watcherThread.start();
+	}
+
+	/**
+	 * Scans inbox of the account for new messages and publishes {@link ApplicationEmailEvent} if any were found
+	 *
+	 * @param uids UIDs of messages to scan or <code>null</code> to scan whole inbox
+	 */
+	public void scanInbox(MailboxAccount account, long[] uids) {
+		scanInbox(account, uids, false);
+	}
+
+	private void scanInbox(MailboxAccount account, long[] uids, boolean skipIfBusy) {
+		if (skipIfBusy) {
+			//	Locking for long running checks in the inbox (lots of messages). skipping processing, if it's already under processing (locked)
+			if (!account.getLock().tryLock()) {
+				return;
+			}
+		} else {
+			account.getLock().lock();
+		}
+
+		String accountName = account.getAccountName();
+		EmailSubjectPatternFinder emailFinder = getEmailFinder();
+		EmailParams params = null;
+		boolean published = false;
 		try {
-			if (event.getActionCommand().equalsIgnoreCase(THREAD_NAME)) {
-				if (!lock.isLocked()) {
-					//	Locking for long running checks in the inbox (lots of messages). skipping processing, if it's already under processing (locked)
-					lock.lock();
-
-					try {
-						IWMainApplicationSettings settings = IWMainApplication.getDefaultIWMainApplication().getSettings();
-						String host = settings.getProperty(PROP_MAIL_HOST, CoreConstants.EMPTY);
-						accountName = settings.getProperty(CoreConstants.PROP_SYSTEM_ACCOUNT, CoreConstants.EMPTY);
-						String protocol = settings.getProperty(PROP_SYSTEM_PROTOCOL, CoreConstants.EMPTY);
-						String password = settings.getProperty(PROP_SYSTEM_PASSWORD, CoreConstants.EMPTY);
-
-						if (StringUtil.isEmpty(host)) {
-							return;
-						}
-						if (StringUtil.isEmpty(accountName) || StringUtil.isEmpty(protocol) || StringUtil.isEmpty(password)) {
-							LOGGER.warning("Mail properties are empty: either account name (" + accountName + ") or email protocol (" + protocol +
-									") or password for the mailbox ("+password+") are not known!");
-							return;
-						}
-
-						EmailSubjectPatternFinder emailFinder = getEmailFinder();
-						EmailParams params = emailFinder.login(host, accountName, password, protocol);
-						// Getting message map
-						Map<String, FoundMessagesInfo> messages = emailFinder.getMessageMap(params);
-						if (MapUtil.isEmpty(messages)) {
-							emailFinder.logout(params);
-						} else {
-							LOGGER.info("Found " + messages.size() + " new emails at " + accountName + ". Keys: " + messages.keySet());
-							ApplicationEmailEvent eventEmail = new ApplicationEmailEvent(this);
-							eventEmail.setMessages(messages);
-							eventEmail.setEmailParams(params);
-							ctx.publishEvent(eventEmail);
-						}
-					} catch (Exception e) {
-						LOGGER.log(Level.WARNING, "Error scanning " + accountName + " for new emails", e);
-					} finally {
-						lock.unlock();
-					}
+			params = emailFinder.login(account.getHost(), accountName, account.getPassword(), account.getProtocol());
+			if (uids != null && params.getFolder() instanceof UIDFolder) {
+				Message[] newMessages = getMessagesByUIDs((UIDFolder) params.getFolder(), uids);
+				if (ArrayUtil.isEmpty(newMessages)) {
+					account.onScanSucceeded();
+					return;
 				}
+				params.setMessagesToScan(newMessages);
+			}
+
+			// Getting message map
+			Map<String, FoundMessagesInfo> messages = emailFinder.getMessageMap(params);
+			if (!MapUtil.isEmpty(messages)) {
+				LOGGER.info("Found " + messages.size() + " new emails at " + accountName + ". Keys: " + messages.keySet());
+				ApplicationEmailEvent eventEmail = new ApplicationEmailEvent(this);
+				eventEmail.setMessages(messages);
+				eventEmail.setEmailParams(params);
+				published = true;
+				ctx.publishEvent(eventEmail);
 			}
+			account.onScanSucceeded();
 		} catch (Exception e) {
-			LOGGER.log(Level.SEVERE, "Exception while processing emails found in " + accountName, e);
+			account.onScanFailed();
+			LOGGER.log(Level.WARNING, "Error scanning " + accountName + " for new emails", e);
+		} finally {
+			//	Once event is published, listeners log out when they are done with the messages
+			if (params != null && !published) {
+				try {
+					emailFinder.logout(params);
+				} catch (Exception e) {
+					LOGGER.log(Level.WARNING, "Error logging out from " + accountName, e);
+				}
+			}
+			account.getLock().unlock();
 		}
+	}
 
+	private Message[] getMessagesByUIDs(UIDFolder folder, long[] uids) throws MessagingException {
+		Message[] messages = folder.getMessagesByUID(uids);
+		if (ArrayUtil.isEmpty(messages)) {
+			return null;
+		}
+
+		//	Messages already moved by other scan are returned as nulls
+		List<Message> existingMessages = new ArrayList<Message>(messages.length);
+		for (Message message: messages) {
+			if (message != null) {
+				existingMessages.add(message);
+			}
+		}
+		return ListUtil.isEmpty(existingMessages) ? null : ArrayUtil.convertListToArray(existingMessages);
 	}
 
-	public void stop() {
+	/**
+	 * Scans inboxes of all accounts when notified by {@link EventTimer}, accounts being scanned already are skipped
+	 */
+	public void actionPerformed(ActionEvent event) {
+		if (event == null || !THREAD_NAME.equalsIgnoreCase(event.getActionCommand())) {
+			return;
+		}
 
-		if (this.emailTimer != null) {
-			this.emailTimer.stop();
-			this.emailTimer = null;
+		for (MailboxAccount account: getAccounts()) {
+			if (account.isScanAllowed()) {
+				scanInbox(account, null, true);
+			}
 		}
+	}
+
+	public synchronized void stop() {
+		for (MailboxAccount account: accounts) {
+			if (account.getIdleWatcher() != null) {
+				account.getIdleWatcher().stop();
+				account.setIdleWatcher(null);
+			}
+			if (account.getScheduledScan() != null) {
+				account.getScheduledScan().cancel(false);
+				account.setScheduledScan(null);
+			}
+		}
+		accounts = Collections.emptyList();
+
+		if (this.scanners != null) {
+			this.scanners.shutdown();
+			this.scanners = null;
+		}
+	}
 
+	public List<MailboxAccount> getAccounts() {
+		return Collections.unmodifiableList(accounts);
 	}
 
 	@Override
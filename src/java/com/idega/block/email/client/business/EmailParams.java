@@ -1,5 +1,14 @@
 package com.idega.block.email.client.business;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
 import javax.mail.Folder;
 import javax.mail.Message;
 import javax.mail.Session;
@@ -21,15 +30,73 @@ public class EmailParams {
 	private Session session;
 	private Store store;
 	private String protocol;
-	private Message[] messagesFound;
+	private Set<Message> messagesFound;
+	private Message[] messagesToScan;
+	private boolean messagesToScanPrefetched;
 	
-	private boolean loggedOut;
+	private Map<String, List<Message>> messagesToMove = new LinkedHashMap<String, List<Message>>();
+	private int messagesToMoveCount;
 	
-	public Message[] getMessagesFound() {
-		return messagesFound;
-	}
-	public void setMessagesFound(Message[] messagesFound) {
-		this.messagesFound = messagesFound;
+	private volatile boolean loggedOut;
+	
+	public synchronized Message[] getMessagesFound() {
+		return messagesFound == null ? null : messagesFound.toArray(new Message[messagesFound.size()]);
+	}
+	public synchronized void setMessagesFound(Message[] messagesFound) {
+		this.messagesFound = messagesFound == null ? null : new LinkedHashSet<Message>(Arrays.asList(messagesFound));
+	}
+	/**
+	 * @return <code>true</code> if there are no more found messages left
+	 */
+	public synchronized boolean removeMessageFound(Message message) {
+		if (messagesFound == null) {
+			return true;
+		}
+		messagesFound.remove(message);
+		return messagesFound.isEmpty();
+	}
+	/**
+	 * @return number of messages waiting to be moved
+	 */
+	public synchronized int addMessageToMove(String destinationFolderName, Message message) {
+		List<Message> messages = messagesToMove.get(destinationFolderName);
+		if (messages == null) {
+			messages = new ArrayList<Message>();
+			messagesToMove.put(destinationFolderName, messages);
+		}
+		messages.add(message);
+		return ++messagesToMoveCount;
+	}
+	/**
+	 * @return messages waiting to be moved, grouped by destination folder. Messages are removed from the waiting list
+	 */
+	public synchronized Map<String, List<Message>> takeMessagesToMove() {
+		if (messagesToMove.isEmpty()) {
+			return Collections.emptyMap();
+		}
+
+		Map<String, List<Message>> messages = messagesToMove;
+		messagesToMove = new LinkedHashMap<String, List<Message>>();
+		messagesToMoveCount = 0;
+		return messages;
+	}
+	/**
+	 * @return messages searchers should look at or <code>null</code> if the whole folder must be scanned
+	 */
+	public Message[] getMessagesToScan() {
+		return messagesToScan;
+	}
+	public void setMessagesToScan(Message[] messagesToScan) {
+		this.messagesToScan = messagesToScan;
+	}
+	/**
+	 * @return <code>true</code> if envelopes of messages to scan are already fetched and searchers must not query the mail server again
+	 */
+	public boolean isMessagesToScanPrefetched() {
+		return messagesToScanPrefetched;
+	}
+	public void setMessagesToScanPrefetched(boolean messagesToScanPrefetched) {
+		this.messagesToScanPrefetched = messagesToScanPrefetched;
 	}
 	public Folder getFolder() {
 		return folder;
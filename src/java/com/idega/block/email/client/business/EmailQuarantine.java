@@ -0,0 +1,258 @@
+package com.idega.block.email.client.business;
+
+import java.sql.Timestamp;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.logging.Level;
+
+import javax.ejb.FinderException;
+import javax.mail.Folder;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.UIDFolder;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.config.BeanDefinition;
+import org.springframework.context.annotation.Scope;
+import org.springframework.stereotype.Service;
+
+import com.idega.block.email.data.MessageFailure;
+import com.idega.block.email.data.MessageFailureHome;
+import com.idega.core.business.DefaultSpringBean;
+import com.idega.data.IDOLookup;
+import com.idega.util.ArrayUtil;
+import com.idega.util.CoreConstants;
+import com.idega.util.ListUtil;
+import com.idega.util.StringUtil;
+import com.idega.util.expression.ELUtil;
+
+/**
+ * Keeps track of messages which can not be parsed. Such messages stay in the inbox and would be fetched and parsed again on every scan, so after
+ * the configured number of attempts message is moved to the quarantine folder. Every failure is persisted as {@link MessageFailure}: record is
+ * removed when the message is parsed successfully later and records not updated for the retention period are purged.
+ */
+@Service
+@Scope(BeanDefinition.SCOPE_SINGLETON)
+public class EmailQuarantine extends DefaultSpringBean {
+
+	public static final String PROP_MAX_ATTEMPTS = "email_parse_max_attempts",
+								PROP_QUARANTINE_FOLDER = "email_quarantine_folder",
+								PROP_RETENTION_DAYS = "email_parse_failure_retention_days";
+
+	private static final int DEFAULT_MAX_ATTEMPTS = 3, MAX_LENGTH = 255, MAX_ERROR_LENGTH = 1000, DEFAULT_RETENTION_DAYS = 30;
+	private static final long DAY = 24 * 60 * 60000L;
+	private static final String DEFAULT_QUARANTINE_FOLDER = "Quarantine";
+
+	private long lastPurge;
+
+	//	Keys of messages having failure records, so successfully parsed messages are not looked up in the database
+	private Set<String> failedKeys;
+
+	@Autowired
+	private EmailSubjectPatternFinder emailsFinder;
+
+	/**
+	 * Registers failed attempt to parse the message and moves it to quarantine folder if retry budget is exhausted
+	 *
+	 * @return <code>true</code> if message was moved to quarantine
+	 */
+	public synchronized boolean onParsingFailed(Message message, EmailParams params, String error) {
+		if (message == null) {
+			return false;
+		}
+
+		String key = getMessageKey(message, params);
+		if (StringUtil.isEmpty(key)) {
+			getLogger().warning("Unable to identify message which failed (" + error + "), it will not be quarantined");
+			return false;
+		}
+
+		int maxAttempts = DEFAULT_MAX_ATTEMPTS;
+		try {
+			maxAttempts = Integer.valueOf(getApplication().getSettings().getProperty(PROP_MAX_ATTEMPTS, String.valueOf(DEFAULT_MAX_ATTEMPTS)));
+		} catch (NumberFormatException e) {
+			getLogger().warning("Invalid value of " + PROP_MAX_ATTEMPTS + ", using " + DEFAULT_MAX_ATTEMPTS);
+		}
+
+		MessageFailure failure = null;
+		try {
+			failure = getFailure(key, message);
+			failure.setAttempts(failure.getAttempts() + 1);
+			failure.setLastError(StringUtil.isEmpty(error) || error.length() <= MAX_ERROR_LENGTH ? error : error.substring(0, MAX_ERROR_LENGTH));
+			failure.setLastFailure(new Timestamp(System.currentTimeMillis()));
+			failure.store();
+			getFailedKeys().add(key);
+		} catch (Exception e) {
+			getLogger().log(Level.WARNING, "Error storing failure of message " + key, e);
+			return false;
+		}
+
+		purge();
+		if (failure.getAttempts() < maxAttempts) {
+			return false;
+		}
+
+		String folderName = getApplication().getSettings().getProperty(PROP_QUARANTINE_FOLDER, DEFAULT_QUARANTINE_FOLDER);
+		try {
+			getEmailsFinder().moveMessage(message, params, folderName);
+			failure.setQuarantined(true);
+			failure.store();
+			getLogger().warning("Message " + key + " failed " + failure.getAttempts() + " time(s), moved it to " + folderName + ". Last error: " +
+					error);
+			return true;
+		} catch (Exception e) {
+			getLogger().log(Level.WARNING, "Error moving message " + key + " to " + folderName, e);
+		}
+		return false;
+	}
+
+	/**
+	 * Removes record of earlier failures of the message, so transient failures are not counted for ever
+	 */
+	public void onParsingSucceeded(Message message, EmailParams params) {
+		if (message == null) {
+			return;
+		}
+
+		String key = getMessageKey(message, params);
+		if (!StringUtil.isEmpty(key) && isFailed(key)) {
+			try {
+				getHome().findByMessageKey(key).remove();
+				removeFailedKey(key);
+			} catch (FinderException e) {
+				removeFailedKey(key);
+			} catch (Exception e) {
+				getLogger().log(Level.WARNING, "Error removing failure of message " + key, e);
+			}
+		}
+
+		purge();
+	}
+
+	/**
+	 * Removes records which were not updated for the retention period, at most once a day
+	 */
+	private void purge() {
+		long now = System.currentTimeMillis();
+		synchronized (this) {
+			if (now - lastPurge < DAY) {
+				return;
+			}
+			lastPurge = now;
+		}
+
+		int retentionDays = DEFAULT_RETENTION_DAYS;
+		try {
+			retentionDays = Integer.valueOf(getApplication().getSettings().getProperty(PROP_RETENTION_DAYS, String.valueOf(DEFAULT_RETENTION_DAYS)));
+		} catch (NumberFormatException e) {
+			getLogger().warning("Invalid value of " + PROP_RETENTION_DAYS + ", using " + DEFAULT_RETENTION_DAYS);
+		}
+
+		Collection<MessageFailure> expired = null;
+		try {
+			expired = getHome().findAllLastFailedBefore(new Timestamp(now - retentionDays * DAY));
+		} catch (FinderException e) {
+		} catch (Exception e) {
+			getLogger().log(Level.WARNING, "Error getting expired failures of messages", e);
+		}
+		if (ListUtil.isEmpty(expired)) {
+			return;
+		}
+
+		for (MessageFailure failure: expired) {
+			try {
+				String key = failure.getMessageKey();
+				failure.remove();
+				removeFailedKey(key);
+			} catch (Exception e) {
+				getLogger().log(Level.WARNING, "Error removing failure of message " + failure.getMessageKey(), e);
+			}
+		}
+	}
+
+	private synchronized boolean isFailed(String key) {
+		return getFailedKeys().contains(key);
+	}
+
+	private synchronized void removeFailedKey(String key) {
+		getFailedKeys().remove(key);
+	}
+
+	/**
+	 * @return keys of the messages which failed, loaded from the database once (records are kept for the retention period only)
+	 */
+	private synchronized Set<String> getFailedKeys() {
+		if (failedKeys == null) {
+			failedKeys = new HashSet<String>();
+			try {
+				Collection<MessageFailure> failures = getHome().findAllLastFailedBefore(new Timestamp(System.currentTimeMillis() + DAY));
+				if (!ListUtil.isEmpty(failures)) {
+					for (MessageFailure failure: failures) {
+						failedKeys.add(failure.getMessageKey());
+					}
+				}
+			} catch (FinderException e) {
+			} catch (Exception e) {
+				getLogger().log(Level.WARNING, "Error loading failures of messages", e);
+			}
+		}
+		return failedKeys;
+	}
+
+	private MessageFailureHome getHome() throws Exception {
+		return (MessageFailureHome) IDOLookup.getHome(MessageFailure.class);
+	}
+
+	private MessageFailure getFailure(String key, Message message) throws Exception {
+		MessageFailureHome home = getHome();
+		try {
+			return home.findByMessageKey(key);
+		} catch (FinderException e) {}
+
+		MessageFailure failure = home.create();
+		failure.setMessageKey(key);
+		failure.setAttempts(0);
+		failure.setFirstFailure(new Timestamp(System.currentTimeMillis()));
+		try {
+			failure.setSubject(getLimited(message.getSubject()));
+			failure.setSenderAddress(getLimited(ArrayUtil.isEmpty(message.getFrom()) ? null : message.getFrom()[0].toString()));
+		} catch (MessagingException e) {}
+		return failure;
+	}
+
+	/**
+	 * @return Message-ID of the message or, if it is not provided, mailbox, UID validity and UID of the message
+	 */
+	public String getMessageKey(Message message, EmailParams params) {
+		try {
+			String[] ids = message.getHeader("Message-ID");
+			if (!ArrayUtil.isEmpty(ids) && !StringUtil.isEmpty(ids[0])) {
+				return getLimited(ids[0].trim());
+			}
+
+			Folder folder = message.getFolder();
+			if (folder instanceof UIDFolder) {
+				UIDFolder uidFolder = (UIDFolder) folder;
+				String mailbox = params == null ? CoreConstants.EMPTY : params.getUsername() + CoreConstants.AT + params.getHostname() + CoreConstants.SLASH;
+				return getLimited(mailbox + folder.getFullName() + CoreConstants.COLON + uidFolder.getUIDValidity() + CoreConstants.COLON +
+						uidFolder.getUID(message));
+			}
+		} catch (MessagingException e) {
+			getLogger().log(Level.WARNING, "Error resolving identifier of message", e);
+		}
+		return null;
+	}
+
+	private String getLimited(String value) {
+		return value == null || value.length() <= MAX_LENGTH ? value : value.substring(0, MAX_LENGTH);
+	}
+
+	private EmailSubjectPatternFinder getEmailsFinder() {
+		if (emailsFinder == null) {
+			ELUtil.getInstance().autowire(this);
+		}
+		return emailsFinder;
+	}
+
+}
@@ -3,30 +3,49 @@ package com.idega.block.email.client.business;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.logging.Level;
 
+import javax.mail.FetchProfile;
 import javax.mail.Flags;
 import javax.mail.Folder;
 import javax.mail.Message;
 import javax.mail.MessagingException;
 import javax.mail.Session;
 import javax.mail.Store;
+import javax.mail.UIDFolder;
+import javax.mail.search.OrTerm;
+import javax.mail.search.SearchTerm;
 
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.config.BeanDefinition;
 import org.springframework.context.annotation.Scope;
 import org.springframework.stereotype.Service;
 import org.springframework.web.context.support.WebApplicationContextUtils;
 
 import com.idega.block.email.bean.FoundMessagesInfo;
+import com.idega.block.email.patterns.DefaultSubjectPatternFinder;
 import com.idega.block.email.patterns.EmailSubjectSearchable;
 import com.idega.core.business.DefaultSpringBean;
 import com.idega.idegaweb.IWMainApplication;
 import com.idega.util.ArrayUtil;
 import com.idega.util.CoreConstants;
 import com.idega.util.ListUtil;
+import com.idega.util.StringUtil;
 import com.idega.util.datastructures.map.MapUtil;
+import com.idega.util.expression.ELUtil;
+import com.sun.mail.iap.Argument;
+import com.sun.mail.iap.ProtocolException;
+import com.sun.mail.imap.IMAPFolder;
+import com.sun.mail.imap.IMAPStore;
+import com.sun.mail.imap.protocol.BASE64MailboxEncoder;
+import com.sun.mail.imap.protocol.IMAPProtocol;
 
 /**
  * This JavaBean is used to store mail user information.
@@ -39,49 +58,193 @@ public class EmailSubjectPatternFinder extends DefaultSpringBean {
 	private static final String DEFAULT_PROTOCOL = "pop3";
 	private static final String DEFAULT_FOLDER = "Inbox";
 	private static final String MSGS_FOLDER = "ReadMessages";
+	private static final String MOVE_CAPABILITY = "MOVE";
+	private static final int MOVE_BATCH_SIZE = 100;
+	private static final int FETCH_BATCH_SIZE = 500;
+
+	private static final String PROP_INCREMENTAL_SCAN = "email_daemon_incremental_scan";
+	private static final String PROP_SCAN_MARK_PREFIX = "email_daemon_scan_mark.";
 
 	private Collection<EmailSubjectSearchable> emailSubjectSearchers;
 
+	@Autowired
+	private EmailConnectionPool connectionPool;
+
+	private final Set<String> existingFolders = Collections.synchronizedSet(new HashSet<String>());
+
 	public EmailSubjectPatternFinder() {}
 
 	/**
 	 * move all messages from folder to new or existing folder
 	 */
 	public void moveMessages(EmailParams params) throws MessagingException {
-		Folder msgFolder = params.getStore().getFolder(MSGS_FOLDER);
-		Folder inbox = params.getFolder();
 		Message[] msgs = params.getMessagesFound();
-
-		for (Message msg: msgs) {
-			moveMessage(msg, inbox, msgFolder, params, true);
+		if (!ArrayUtil.isEmpty(msgs)) {
+			for (Message msg: msgs) {
+				params.addMessageToMove(MSGS_FOLDER, msg);
+			}
 		}
+		params.setMessagesFound(new Message[] {});
+
+		logout(params);
 	}
 
+	/**
+	 * Marks message to be moved to the folder of read messages. Messages are moved in batches: when all found messages are processed (then
+	 * mailbox is also logged out), when there are enough of them waiting or when {@link #flushMovedMessages(EmailParams)} is called
+	 */
 	public void moveMessage(Message message, EmailParams params) throws MessagingException {
-		moveMessage(message, params.getFolder(), params.getStore().getFolder(MSGS_FOLDER), params, true);
+		moveMessage(message, params, MSGS_FOLDER, true);
 	}
 
 	public void moveMessage(Message message, EmailParams params, String destinationFolderName) throws MessagingException {
-		Folder inbox = params.getFolder();
-		Folder destinationFolder = params.getStore().getFolder(destinationFolderName);
+		moveMessage(message, params, destinationFolderName, false);
+	}
+
+	/**
+	 * Leaves the message in the inbox (it was not processed and will be found again), so the mailbox is logged out when all other found
+	 * messages are processed
+	 */
+	public void skipMessage(Message message, EmailParams params) throws MessagingException {
+		if (params.removeMessageFound(message)) {
+			logout(params);
+		}
+	}
+
+	private void moveMessage(Message message, EmailParams params, String destinationFolderName, boolean logout) throws MessagingException {
+		int waiting = params.addMessageToMove(destinationFolderName, message);
+		boolean allProcessed = params.removeMessageFound(message);
+
+		if (logout && allProcessed) {
+			logout(params);
+		} else if (waiting >= MOVE_BATCH_SIZE) {
+			flushMovedMessages(params);
+		}
+	}
+
+	/**
+	 * Moves all messages waiting to be moved, one command per destination folder. Messages of the same mailbox can be parsed by several threads,
+	 * so moving and logging out are done by one thread at a time
+	 */
+	public void flushMovedMessages(EmailParams params) throws MessagingException {
+		synchronized (params) {
+			if (params.isLoggedOut()) {
+				//	Messages stay in the inbox and will be found again by the next scan
+				Map<String, List<Message>> droppedMessages = params.takeMessagesToMove();
+				for (Map.Entry<String, List<Message>> entry: droppedMessages.entrySet()) {
+					getLogger().warning("Mailbox " + params.getUsername() + CoreConstants.AT + params.getHostname() + " is logged out, messages " +
+							getUIDs(params, entry.getValue()) + " were not moved to " + entry.getKey());
+				}
+				return;
+			}
+
+			Map<String, List<Message>> messagesToMove = params.takeMessagesToMove();
+			for (Map.Entry<String, List<Message>> entry: messagesToMove.entrySet()) {
+				moveMessages(entry.getValue(), params, entry.getKey());
+			}
+		}
+	}
+
+	/**
+	 * @return UIDs of the messages (numbers of the messages if UIDs are not known)
+	 */
+	private List<String> getUIDs(EmailParams params, List<Message> messages) {
+		List<String> uids = new ArrayList<String>(messages.size());
+		for (Message message: messages) {
+			String uid = null;
+			if (params.getFolder() instanceof UIDFolder) {
+				try {
+					uid = String.valueOf(((UIDFolder) params.getFolder()).getUID(message));
+				} catch (Exception e) {}
+			}
+			uids.add(uid == null ? "#" + message.getMessageNumber() : uid);
+		}
+		return uids;
+	}
+
+	/**
+	 * Moves messages to the given folder using IMAP MOVE command if server supports it, otherwise messages are copied and marked as deleted
+	 */
+	public void moveMessages(Collection<Message> messages, EmailParams params, String destinationFolderName) throws MessagingException {
+		if (ListUtil.isEmpty(messages)) {
+			return;
+		}
+
+		List<Message> existingMessages = new ArrayList<Message>(messages.size());
+		for (Message message: messages) {
+			if (!message.isExpunged()) {
+				existingMessages.add(message);
+			}
+		}
+		if (ListUtil.isEmpty(existingMessages)) {
+			return;
+		}
+
+		Message[] messagesToMove = ArrayUtil.convertListToArray(existingMessages);
+		Folder sourceFolder = params.getFolder();
+		Folder destinationFolder = getDestinationFolder(params, destinationFolderName);
 
-		moveMessage(message, inbox, destinationFolder, params, false);
+		if (sourceFolder instanceof IMAPFolder && params.getStore() instanceof IMAPStore &&
+				((IMAPStore) params.getStore()).hasCapability(MOVE_CAPABILITY)) {
+			moveMessagesByUIDs((IMAPFolder) sourceFolder, messagesToMove, destinationFolder.getFullName());
+			return;
+		}
+
+		sourceFolder.copyMessages(messagesToMove, destinationFolder);
+		sourceFolder.setFlags(messagesToMove, new Flags(Flags.Flag.DELETED), true);
 	}
 
-	private synchronized void moveMessage(Message message, Folder sourceFolder, Folder destinationFolder, EmailParams params, boolean logout) throws MessagingException {
-		Collection<Message> foundMessages = new ArrayList<Message>(Arrays.asList(params.getMessagesFound()));
-		foundMessages.remove(message);
-		params.setMessagesFound(ArrayUtil.convertListToArray(foundMessages));
+	private Folder getDestinationFolder(EmailParams params, String destinationFolderName) throws MessagingException {
+		Folder destinationFolder = params.getStore().getFolder(destinationFolderName);
+
+		String key = params.getUsername() + CoreConstants.AT + params.getHostname() + CoreConstants.SLASH + destinationFolderName;
+		if (existingFolders.contains(key)) {
+			return destinationFolder;
+		}
 
-		if (!destinationFolder.exists())
+		if (!destinationFolder.exists()) {
 			destinationFolder.create(Folder.HOLDS_MESSAGES);
+		}
+		existingFolders.add(key);
 
-		sourceFolder.copyMessages(new Message[] {message}, destinationFolder);
-		message.setFlag(Flags.Flag.DELETED, true);
+		return destinationFolder;
+	}
 
-		if (logout && ArrayUtil.isEmpty(params.getMessagesFound())) {
-			logout(params);
+	private void moveMessagesByUIDs(IMAPFolder sourceFolder, Message[] messages, String destinationFolderName) throws MessagingException {
+		long[] uids = new long[messages.length];
+		for (int i = 0; i < messages.length; i++) {
+			uids[i] = sourceFolder.getUID(messages[i]);
 		}
+		Arrays.sort(uids);
+
+		//	UID set as ranges, e.g. 1:5,8,10:12
+		final StringBuilder uidSet = new StringBuilder();
+		for (int i = 0; i < uids.length; i++) {
+			int rangeEnd = i;
+			while (rangeEnd + 1 < uids.length && uids[rangeEnd + 1] <= uids[rangeEnd] + 1) {
+				rangeEnd++;
+			}
+
+			if (uidSet.length() > 0) {
+				uidSet.append(CoreConstants.COMMA);
+			}
+			uidSet.append(uids[i]);
+			if (rangeEnd > i) {
+				uidSet.append(CoreConstants.COLON).append(uids[rangeEnd]);
+			}
+			i = rangeEnd;
+		}
+
+		final String mailbox = BASE64MailboxEncoder.encode(destinationFolderName);
+		sourceFolder.doCommand(new IMAPFolder.ProtocolCommand() {
+			@Override
+			public Object doCommand(IMAPProtocol protocol) throws ProtocolException {
+				Argument args = new Argument();
+				args.writeString(mailbox);
+				protocol.simpleCommand("UID MOVE " + uidSet, args);
+				return null;
+			}
+		});
 	}
 
 	/**
@@ -97,32 +260,51 @@ public class EmailSubjectPatternFinder extends DefaultSpringBean {
 			return allMessages;
 		}
 
-		for (EmailSubjectSearchable emailSearcher: emailsSearchers) {
-			Map<String, FoundMessagesInfo> messages = emailSearcher.getSearchResultsFormatted(params);
-			if (MapUtil.isEmpty(messages)) {
-				continue;
+		boolean incrementalScan = params.getMessagesToScan() == null && params.getFolder() instanceof UIDFolder &&
+				getApplication().getSettings().getBoolean(PROP_INCREMENTAL_SCAN, false);
+		if (incrementalScan) {
+			Message[] newMessages = getMessagesAboveScanMark(params);
+			if (ArrayUtil.isEmpty(newMessages)) {
+				params.setMessagesFound(new Message[] {});
+				return allMessages;
 			}
+			params.setMessagesToScan(newMessages);
+		}
 
-			for (String identifier: messages.keySet()) {
-				FoundMessagesInfo messagesByIdentifier = messages.get(identifier);
-				if (messagesByIdentifier == null || ListUtil.isEmpty(messagesByIdentifier.getMessages())) {
-					getLogger().warning("No messages found by identifer: " + identifier + ". Emails searcher: " + emailSearcher.getClass().getName() + ". All messages:\n" + messages.keySet());
+		//	Fetching envelopes once, all searchers are matching subjects of the same messages in memory
+		Message[] messagesToScan = params.getMessagesToScan();
+		Message[] candidates = getCandidates(params, emailsSearchers);
+		params.setMessagesToScan(candidates);
+		params.setMessagesToScanPrefetched(true);
+		try {
+			for (EmailSubjectSearchable emailSearcher: emailsSearchers) {
+				Map<String, FoundMessagesInfo> messages = emailSearcher.getSearchResultsFormatted(params);
+				if (MapUtil.isEmpty(messages)) {
 					continue;
 				}
 
-				FoundMessagesInfo formattedMessages = allMessages.get(identifier);
-				if (formattedMessages == null) {
-					formattedMessages = new FoundMessagesInfo(messagesByIdentifier.getMessages(), messagesByIdentifier.getParserType());
-					formattedMessages.setIdentifier(messagesByIdentifier.getIdentifier());
-					allMessages.put(identifier, formattedMessages);
-				} else {
-					for (Message messageByIdentifier: messagesByIdentifier.getMessages()) {
-						if (!formattedMessages.getMessages().contains(messageByIdentifier)) {
+				for (String identifier: messages.keySet()) {
+					FoundMessagesInfo messagesByIdentifier = messages.get(identifier);
+					if (messagesByIdentifier == null || ListUtil.isEmpty(messagesByIdentifier.getMessages())) {
+						getLogger().warning("No messages found by identifer: " + identifier + ". Emails searcher: " + emailSearcher.getClass().getName() + ". All messages:\n" + messages.keySet());
+						continue;
+					}
+
+					FoundMessagesInfo formattedMessages = allMessages.get(identifier);
+					if (formattedMessages == null) {
+						formattedMessages = new FoundMessagesInfo(messagesByIdentifier.getMessages(), messagesByIdentifier.getParserType());
+						formattedMessages.setIdentifier(messagesByIdentifier.getIdentifier());
+						allMessages.put(identifier, formattedMessages);
+					} else {
+						for (Message messageByIdentifier: messagesByIdentifier.getMessages()) {
 							formattedMessages.addMessage(messageByIdentifier);
 						}
 					}
 				}
 			}
+		} finally {
+			params.setMessagesToScan(messagesToScan);
+			params.setMessagesToScanPrefetched(false);
 		}
 
 		for (FoundMessagesInfo messageInfo: allMessages.values()) {
@@ -130,13 +312,164 @@ public class EmailSubjectPatternFinder extends DefaultSpringBean {
 		}
 		params.setMessagesFound(ListUtil.isEmpty(foundMessages) ? new Message[] {} : ArrayUtil.convertListToArray(foundMessages));
 
+		if (incrementalScan) {
+			updateScanMark(params, foundMessages);
+		}
+
 		return allMessages;
 	}
 
+	/**
+	 * Returns messages which may match any of the searchers: if every searcher provides server side search term, mail server is asked for
+	 * the messages matching any of the terms, otherwise all messages to scan are returned. Envelopes and UIDs of returned messages are fetched
+	 */
+	private Message[] getCandidates(EmailParams params, Collection<EmailSubjectSearchable> emailsSearchers) throws MessagingException {
+		List<SearchTerm> serverSideTerms = new ArrayList<SearchTerm>();
+		for (EmailSubjectSearchable emailSearcher: emailsSearchers) {
+			SearchTerm serverSideTerm = emailSearcher instanceof DefaultSubjectPatternFinder ?
+					((DefaultSubjectPatternFinder) emailSearcher).getServerSideSearchTerm() :
+					null;
+			if (serverSideTerm == null) {
+				serverSideTerms = null;
+				break;
+			}
+			serverSideTerms.add(serverSideTerm);
+		}
+
+		Folder folder = params.getFolder();
+		Message[] messagesToScan = params.getMessagesToScan();
+		Message[] candidates = null;
+		if (serverSideTerms == null) {
+			candidates = messagesToScan == null ? folder.getMessages() : messagesToScan;
+		} else {
+			SearchTerm term = serverSideTerms.size() == 1 ?
+					serverSideTerms.get(0) :
+					new OrTerm(serverSideTerms.toArray(new SearchTerm[serverSideTerms.size()]));
+			candidates = messagesToScan == null ? folder.search(term) : folder.search(term, messagesToScan);
+		}
+		if (ArrayUtil.isEmpty(candidates)) {
+			return new Message[] {};
+		}
+
+		FetchProfile profile = new FetchProfile();
+		profile.add(FetchProfile.Item.ENVELOPE);
+		if (folder instanceof UIDFolder) {
+			profile.add(UIDFolder.FetchProfileItem.UID);
+		}
+		folder.fetch(candidates, profile);
+
+		return candidates;
+	}
+
+	/**
+	 * Fetches structure (BODYSTRUCTURE on IMAP) of messages in batches, so parser knows types of all parts without fetching them one by one
+	 */
+	public void fetchContentInfo(Collection<Message> messages) {
+		if (ListUtil.isEmpty(messages)) {
+			return;
+		}
+
+		Map<Folder, List<Message>> messagesByFolder = new HashMap<Folder, List<Message>>();
+		for (Message message: messages) {
+			Folder folder = message == null ? null : message.getFolder();
+			if (folder == null || !folder.isOpen()) {
+				continue;
+			}
+
+			List<Message> folderMessages = messagesByFolder.get(folder);
+			if (folderMessages == null) {
+				folderMessages = new ArrayList<Message>();
+				messagesByFolder.put(folder, folderMessages);
+			}
+			folderMessages.add(message);
+		}
+
+		FetchProfile profile = new FetchProfile();
+		profile.add(FetchProfile.Item.CONTENT_INFO);
+		for (Map.Entry<Folder, List<Message>> entry: messagesByFolder.entrySet()) {
+			List<Message> folderMessages = entry.getValue();
+			for (int from = 0; from < folderMessages.size(); from += FETCH_BATCH_SIZE) {
+				List<Message> batch = folderMessages.subList(from, Math.min(from + FETCH_BATCH_SIZE, folderMessages.size()));
+				try {
+					entry.getKey().fetch(batch.toArray(new Message[batch.size()]), profile);
+				} catch (MessagingException e) {
+					getLogger().log(Level.WARNING, "Error fetching structure of messages in " + entry.getKey().getFullName(), e);
+				}
+			}
+		}
+	}
+
+	private String getScanMarkKey(EmailParams params) {
+		return PROP_SCAN_MARK_PREFIX + params.getUsername() + CoreConstants.AT + params.getHostname() + CoreConstants.SLASH +
+				params.getFolder().getFullName();
+	}
+
+	/**
+	 * Returns messages having UID greater than the last processed one. If UIDVALIDITY of the folder has changed since last scan, all messages are
+	 * returned
+	 */
+	private Message[] getMessagesAboveScanMark(EmailParams params) throws MessagingException {
+		UIDFolder folder = (UIDFolder) params.getFolder();
+		long uidValidity = folder.getUIDValidity();
+
+		long lastUID = 0;
+		String mark = getApplication().getSettings().getProperty(getScanMarkKey(params));
+		if (!StringUtil.isEmpty(mark)) {
+			String[] validityAndUID = mark.split(CoreConstants.COLON);
+			try {
+				if (validityAndUID.length == 2 && Long.valueOf(validityAndUID[0]) == uidValidity) {
+					lastUID = Long.valueOf(validityAndUID[1]);
+				}
+			} catch (NumberFormatException e) {
+				getLogger().warning("Invalid scan mark '" + mark + "' for " + getScanMarkKey(params));
+			}
+		}
+
+		Message[] messages = folder.getMessagesByUID(lastUID + 1, UIDFolder.LASTUID);
+		if (ArrayUtil.isEmpty(messages)) {
+			return null;
+		}
+
+		//	Server returns the last message for range n:* even if its UID is lower than n
+		List<Message> newMessages = new ArrayList<Message>(messages.length);
+		for (Message message: messages) {
+			if (message != null && folder.getUID(message) > lastUID) {
+				newMessages.add(message);
+			}
+		}
+		return ListUtil.isEmpty(newMessages) ? null : ArrayUtil.convertListToArray(newMessages);
+	}
+
+	/**
+	 * Moves scan mark to the highest scanned UID, but not past the oldest found message: found messages which will not be processed (moved
+	 * out of the inbox) must be scanned again
+	 */
+	private void updateScanMark(EmailParams params, Collection<Message> foundMessages) throws MessagingException {
+		UIDFolder folder = (UIDFolder) params.getFolder();
+
+		long mark = 0;
+		for (Message message: params.getMessagesToScan()) {
+			mark = Math.max(mark, folder.getUID(message));
+		}
+		for (Message message: foundMessages) {
+			mark = Math.min(mark, folder.getUID(message) - 1);
+		}
+		if (mark <= 0) {
+			return;
+		}
+
+		getApplication().getSettings().setProperty(getScanMarkKey(params), folder.getUIDValidity() + CoreConstants.COLON + mark);
+	}
+
 	/**
 	 * Method used to login to the mail inbox.
 	 */
 	public void login(EmailParams params) throws Exception {
+		String folderName = IWMainApplication.getDefaultIWMainApplication().getSettings().getProperty("mail_inbox_folder", DEFAULT_FOLDER);
+		if (getConnectionPool().borrow(params, folderName)) {
+			return;
+		}
+
 		Properties props = new Properties();
 		Session session = Session.getDefaultInstance(props, null);
 		params.setSession(session);
@@ -152,13 +485,13 @@ public class EmailSubjectPatternFinder extends DefaultSpringBean {
 
 		store.connect(params.getHostname(), params.getUsername(), params.getPassword());
 
-		String folderName = IWMainApplication.getDefaultIWMainApplication().getSettings().getProperty("mail_inbox_folder", DEFAULT_FOLDER);
 		Folder folder = store.getFolder(folderName);
 		if (folder == null || !folder.exists()) {
 			getLogger().warning("Folder with name '" + folderName + "' does not exist!");
 		}
 		params.setFolder(folder);
 		folder.open(Folder.READ_WRITE);
+		params.setLoggedOut(false);
 	}
 
 	/**
@@ -181,13 +514,33 @@ public class EmailSubjectPatternFinder extends DefaultSpringBean {
 	 * Method used to logout from the mail host.
 	 */
 	public void logout(EmailParams params) throws MessagingException {
-		if (params.isLoggedOut()) {
-			return;
+		synchronized (params) {
+			if (params.isLoggedOut()) {
+				return;
+			}
+
+			try {
+				flushMovedMessages(params);
+			} catch (MessagingException e) {
+				getLogger().log(Level.WARNING, "Error moving processed messages at " + params.getUsername() + CoreConstants.AT + params.getHostname(), e);
+			}
+
+			if (getConnectionPool().release(params)) {
+				params.setLoggedOut(true);
+				return;
+			}
+
+			params.getFolder().close(true);
+			params.getStore().close();
+			params.setLoggedOut(true);
 		}
+	}
 
-		params.getFolder().close(true);
-		params.getStore().close();
-		params.setLoggedOut(true);
+	private EmailConnectionPool getConnectionPool() {
+		if (connectionPool == null) {
+			ELUtil.getInstance().autowire(this);
+		}
+		return connectionPool;
 	}
 
 	@SuppressWarnings("unchecked")
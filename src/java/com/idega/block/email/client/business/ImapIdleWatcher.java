@@ -0,0 +1,196 @@
+package com.idega.block.email.client.business;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.mail.Folder;
+import javax.mail.FolderClosedException;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.event.MessageCountAdapter;
+import javax.mail.event.MessageCountEvent;
+
+import com.idega.util.ArrayUtil;
+import com.sun.mail.iap.ProtocolException;
+import com.sun.mail.imap.IMAPFolder;
+import com.sun.mail.imap.IMAPStore;
+import com.sun.mail.imap.protocol.IMAPProtocol;
+
+/**
+ * Keeps one IMAP folder open and waits in IDLE for new messages. UIDs of arrived messages are passed to {@link EmailDaemon} which scans only them.
+ * If store does not support IDLE, daemon is asked to fall back to the polling timer.
+ */
+public class ImapIdleWatcher implements Runnable {
+
+	private static final Logger LOGGER = Logger.getLogger(ImapIdleWatcher.class.getName());
+
+	private static final String IDLE_CAPABILITY = "IDLE";
+
+	private static final long RECONNECT_DELAY = 60000;
+
+	private final EmailDaemon daemon;
+	private final MailboxAccount account;
+	private final String host, accountName;
+	private final long keepAliveInterval;
+
+	private volatile boolean running = true;
+	private volatile IMAPFolder folder;
+	private Thread keepAliveThread;
+
+	public ImapIdleWatcher(EmailDaemon daemon, MailboxAccount account, long keepAliveInterval) {
+		this.daemon = daemon;
+		this.account = account;
+		this.host = account.getHost();
+		this.accountName = account.getAccountName();
+		this.keepAliveInterval = keepAliveInterval;
+	}
+
+	@Override
+	public void run() {
+		while (running) {
+			EmailParams params = null;
+			try {
+				params = daemon.getEmailFinder().login(host, accountName, account.getPassword(), account.getProtocol());
+				if (!(params.getStore() instanceof IMAPStore) || !(params.getFolder() instanceof IMAPFolder) ||
+						!((IMAPStore) params.getStore()).hasCapability(IDLE_CAPABILITY)) {
+					LOGGER.warning("Mail server " + host + " does not support IMAP IDLE, falling back to polling");
+					running = false;
+					daemon.startPolling(account);
+					return;
+				}
+
+				folder = (IMAPFolder) params.getFolder();
+				folder.addMessageCountListener(new MessageCountAdapter() {
+					@Override
+					public void messagesAdded(MessageCountEvent event) {
+						onMessagesAdded(event.getMessages());
+					}
+				});
+				startKeepAlive();
+
+				//	Catching up with messages which arrived while we were not connected
+				daemon.scanInbox(account, null);
+
+				while (running) {
+					folder.idle();
+				}
+			} catch (FolderClosedException e) {
+				LOGGER.info("IDLE connection to " + accountName + " at " + host + " was closed, reconnecting");
+			} catch (Exception e) {
+				LOGGER.log(Level.WARNING, "Error waiting for new messages at " + accountName + " on " + host, e);
+			} finally {
+				stopKeepAlive();
+				folder = null;
+				logout(params);
+			}
+
+			if (running) {
+				try {
+					Thread.sleep(RECONNECT_DELAY);
+				} catch (InterruptedException e) {
+					running = false;
+				}
+			}
+		}
+	}
+
+	private void onMessagesAdded(Message[] messages) {
+		if (ArrayUtil.isEmpty(messages)) {
+			return;
+		}
+
+		IMAPFolder folder = this.folder;
+		if (folder == null) {
+			return;
+		}
+
+		long[] uids = new long[messages.length];
+		try {
+			for (int i = 0; i < messages.length; i++) {
+				uids[i] = folder.getUID(messages[i]);
+			}
+		} catch (MessagingException e) {
+			LOGGER.log(Level.WARNING, "Error resolving UIDs of new messages at " + accountName + ", will scan whole inbox", e);
+			uids = null;
+		}
+
+		//	Scanning is done using separate connection, this one stays in IDLE
+		daemon.scanInbox(account, uids);
+	}
+
+	/**
+	 * Servers drop IDLE connections after ~30 minutes, so NOOP is sent periodically. Using the folder from other thread terminates IDLE,
+	 * the watcher issues it again right away.
+	 */
+	private void startKeepAlive() {
+		keepAliveThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				while (running && !Thread.currentThread().isInterrupted()) {
+					try {
+						Thread.sleep(keepAliveInterval);
+					} catch (InterruptedException e) {
+						return;
+					}
+
+					IMAPFolder folder = ImapIdleWatcher.this.folder;
+					if (folder == null) {
+						return;
+					}
+					try {
+						folder.doCommand(new IMAPFolder.ProtocolCommand() {
+							@Override
+							public Object doCommand(IMAPProtocol protocol) throws ProtocolException {
+								protocol.simpleCommand("NOOP", null);
+								return null;
+							}
+						});
+					} catch (MessagingException e) {
+						LOGGER.log(Level.WARNING, "Error sending NOOP to " + host, e);
+					}
+				}
+			}
+		}, EmailDaemon.THREAD_NAME + "_keep_alive");
+		keepAliveThread.setDaemon(true);
+		keepAliveThread.start();
+	}
+
+	private void stopKeepAlive() {
+		if (keepAliveThread != null) {
+			keepAliveThread.interrupt();
+			keepAliveThread = null;
+		}
+	}
+
+	private void logout(EmailParams params) {
+		if (params == null || params.getStore() == null) {
+			return;
+		}
+
+		try {
+			Folder folder = params.getFolder();
+			if (folder != null && folder.isOpen()) {
+				folder.close(false);
+			}
+			params.getStore().close();
+		} catch (MessagingException e) {
+			LOGGER.log(Level.WARNING, "Error closing IDLE connection to " + host, e);
+		}
+	}
+
+	public void stop() {
+		running = false;
+		stopKeepAlive();
+
+		IMAPFolder folder = this.folder;
+		if (folder != null) {
+			try {
+				//	Closing folder terminates IDLE
+				folder.close(false);
+			} catch (Exception e) {
+				LOGGER.log(Level.WARNING, "Error closing IDLE folder of " + accountName + " on " + host, e);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,113 @@
+package com.idega.block.email.client.business;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Mailbox scanned by {@link EmailDaemon} together with its scanning state: lock, failures counter and scheduled task
+ */
+public class MailboxAccount {
+
+	private static final long MAX_BACKOFF = 60 * 60000;
+
+	private final String key;
+	private final String host;
+	private final String accountName;
+	private final String password;
+	private final String protocol;
+	private final long checkInterval;
+	private final boolean pushMode;
+
+	private final ReentrantLock lock = new ReentrantLock();
+
+	private int failures;
+	private long nextScanAllowed;
+
+	private ScheduledFuture<?> scheduledScan;
+	private ImapIdleWatcher idleWatcher;
+
+	public MailboxAccount(String key, String host, String accountName, String password, String protocol, long checkInterval, boolean pushMode) {
+		this.key = key;
+		this.host = host;
+		this.accountName = accountName;
+		this.password = password;
+		this.protocol = protocol;
+		this.checkInterval = checkInterval;
+		this.pushMode = pushMode;
+	}
+
+	public String getKey() {
+		return key;
+	}
+
+	public String getHost() {
+		return host;
+	}
+
+	public String getAccountName() {
+		return accountName;
+	}
+
+	public String getPassword() {
+		return password;
+	}
+
+	public String getProtocol() {
+		return protocol;
+	}
+
+	public long getCheckInterval() {
+		return checkInterval;
+	}
+
+	public boolean isPushMode() {
+		return pushMode;
+	}
+
+	ReentrantLock getLock() {
+		return lock;
+	}
+
+	/**
+	 * @return <code>false</code> if scan should be skipped because previous scans failed
+	 */
+	synchronized boolean isScanAllowed() {
+		return System.currentTimeMillis() >= nextScanAllowed;
+	}
+
+	/**
+	 * Delays next scan exponentially: interval * 2^failures, at most one hour
+	 */
+	synchronized void onScanFailed() {
+		failures++;
+		long backoff = checkInterval * (1L << Math.min(failures, 10));
+		nextScanAllowed = System.currentTimeMillis() + Math.min(backoff, MAX_BACKOFF);
+	}
+
+	synchronized void onScanSucceeded() {
+		failures = 0;
+		nextScanAllowed = 0;
+	}
+
+	ScheduledFuture<?> getScheduledScan() {
+		return scheduledScan;
+	}
+
+	void setScheduledScan(ScheduledFuture<?> scheduledScan) {
+		this.scheduledScan = scheduledScan;
+	}
+
+	ImapIdleWatcher getIdleWatcher() {
+		return idleWatcher;
+	}
+
+	void setIdleWatcher(ImapIdleWatcher idleWatcher) {
+		this.idleWatcher = idleWatcher;
+	}
+
+	@Override
+	public String toString() {
+		return key + ": " + accountName + " at " + host + " (" + protocol + ")";
+	}
+
+}
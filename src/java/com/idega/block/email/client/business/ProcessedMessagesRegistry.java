@@ -0,0 +1,207 @@
+package com.idega.block.email.client.business;
+
+import java.security.MessageDigest;
+import java.sql.Timestamp;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+
+import javax.ejb.FinderException;
+import javax.mail.Address;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+
+import org.springframework.beans.factory.config.BeanDefinition;
+import org.springframework.context.annotation.Scope;
+import org.springframework.stereotype.Service;
+
+import com.idega.block.email.data.ProcessedMessage;
+import com.idega.block.email.data.ProcessedMessageHome;
+import com.idega.core.business.DefaultSpringBean;
+import com.idega.data.IDOLookup;
+import com.idega.util.ArrayUtil;
+import com.idega.util.CoreConstants;
+import com.idega.util.ListUtil;
+import com.idega.util.StringUtil;
+
+/**
+ * Remembers e-mails which were processed, so the same e-mail is not processed twice when it is found in the inbox again: moving it failed, node
+ * was restarted before processed messages were moved or several nodes scan the same mailbox. E-mail is identified by hash of its Message-ID,
+ * sender, sent date and subject. Records are kept for the configured number of days.
+ */
+@Service
+@Scope(BeanDefinition.SCOPE_SINGLETON)
+public class ProcessedMessagesRegistry extends DefaultSpringBean {
+
+	public static final String PROP_ENABLED = "email_processed_registry_enabled",
+								PROP_TTL_DAYS = "email_processed_registry_ttl_days";
+
+	private static final int DEFAULT_TTL_DAYS = 30, CACHE_SIZE = 10000;
+	private static final long DAY = 24 * 60 * 60000L;
+
+	private final Map<String, Boolean> recentlyProcessed = new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+		private static final long serialVersionUID = 2792186393071212493L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+			return size() > CACHE_SIZE;
+		}
+	};
+
+	private long lastPurge;
+
+	public boolean isEnabled() {
+		return getApplication().getSettings().getBoolean(PROP_ENABLED, true);
+	}
+
+	/**
+	 * @return <code>true</code> if the same e-mail was already processed
+	 */
+	public boolean isProcessed(Message message) {
+		if (!isEnabled()) {
+			return false;
+		}
+
+		String hash = getEnvelopeHash(message);
+		if (hash == null) {
+			return false;
+		}
+
+		synchronized (recentlyProcessed) {
+			if (recentlyProcessed.containsKey(hash)) {
+				return true;
+			}
+		}
+
+		try {
+			getHome().findByEnvelopeHash(hash);
+		} catch (FinderException e) {
+			return false;
+		} catch (Exception e) {
+			getLogger().log(Level.WARNING, "Error checking if message was processed", e);
+			return false;
+		}
+
+		synchronized (recentlyProcessed) {
+			recentlyProcessed.put(hash, Boolean.TRUE);
+		}
+		return true;
+	}
+
+	public void markProcessed(Message message) {
+		if (!isEnabled()) {
+			return;
+		}
+
+		String hash = getEnvelopeHash(message);
+		if (hash == null) {
+			return;
+		}
+
+		synchronized (recentlyProcessed) {
+			if (recentlyProcessed.put(hash, Boolean.TRUE) != null) {
+				return;
+			}
+		}
+
+		try {
+			ProcessedMessage processed = getHome().create();
+			processed.setMessageId(getMessageId(message));
+			processed.setEnvelopeHash(hash);
+			processed.setProcessed(new Timestamp(System.currentTimeMillis()));
+			processed.store();
+		} catch (Exception e) {
+			getLogger().log(Level.WARNING, "Error storing processed message " + hash, e);
+		}
+
+		purgeExpired();
+	}
+
+	/**
+	 * Removes records older than TTL, at most once a day
+	 */
+	private void purgeExpired() {
+		long now = System.currentTimeMillis();
+		synchronized (this) {
+			if (now - lastPurge < DAY) {
+				return;
+			}
+			lastPurge = now;
+		}
+
+		int ttl = DEFAULT_TTL_DAYS;
+		try {
+			ttl = Integer.valueOf(getApplication().getSettings().getProperty(PROP_TTL_DAYS, String.valueOf(DEFAULT_TTL_DAYS)));
+		} catch (NumberFormatException e) {
+			getLogger().warning("Invalid value of " + PROP_TTL_DAYS + ", using " + DEFAULT_TTL_DAYS);
+		}
+
+		try {
+			Collection<ProcessedMessage> expired = getHome().findAllProcessedBefore(new Timestamp(now - ttl * DAY));
+			if (ListUtil.isEmpty(expired)) {
+				return;
+			}
+
+			for (ProcessedMessage processed: expired) {
+				processed.remove();
+			}
+		} catch (FinderException e) {
+		} catch (Exception e) {
+			getLogger().log(Level.WARNING, "Error removing expired records of processed messages", e);
+		}
+	}
+
+	private String getMessageId(Message message) {
+		try {
+			String[] ids = message.getHeader("Message-ID");
+			if (!ArrayUtil.isEmpty(ids) && !StringUtil.isEmpty(ids[0])) {
+				String id = ids[0].trim();
+				return id.length() > 255 ? id.substring(0, 255) : id;
+			}
+		} catch (MessagingException e) {}
+		return null;
+	}
+
+	/**
+	 * Hash of envelope: Message-ID, sender, sent date and subject. Content is not hashed, so it does not need to be downloaded; e-mails having the
+	 * same envelope are treated as the same e-mail
+	 */
+	public String getEnvelopeHash(Message message) {
+		if (message == null) {
+			return null;
+		}
+
+		try {
+			StringBuilder data = new StringBuilder();
+			String messageId = getMessageId(message);
+			data.append(messageId == null ? CoreConstants.EMPTY : messageId).append('\n');
+			Address[] from = message.getFrom();
+			if (!ArrayUtil.isEmpty(from)) {
+				for (Address address: from) {
+					data.append(address).append(CoreConstants.COMMA);
+				}
+			}
+			data.append('\n').append(message.getSentDate() == null ? CoreConstants.EMPTY : String.valueOf(message.getSentDate().getTime()));
+			data.append('\n').append(message.getSubject() == null ? CoreConstants.EMPTY : message.getSubject());
+			if (messageId == null && message.getSentDate() == null && message.getSubject() == null) {
+				return null;
+			}
+
+			byte[] digest = MessageDigest.getInstance("SHA-256").digest(data.toString().getBytes(CoreConstants.ENCODING_UTF8));
+			StringBuilder hash = new StringBuilder(digest.length * 2);
+			for (byte b: digest) {
+				hash.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+			}
+			return hash.toString();
+		} catch (Exception e) {
+			getLogger().log(Level.WARNING, "Error calculating hash of message", e);
+		}
+		return null;
+	}
+
+	private ProcessedMessageHome getHome() throws Exception {
+		return (ProcessedMessageHome) IDOLookup.getHome(ProcessedMessage.class);
+	}
+
+}
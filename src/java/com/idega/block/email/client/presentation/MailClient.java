@@ -61,10 +61,15 @@ public class MailClient extends Block {
 		Table T = new Table();
 
 		if (emailParams != null) {
-			if (iwc.isParameterSet(prmMsgNum)) {
-				T.add(getMessage(iwc));
-			} else {
-				T.add(getListMessages(iwc));
+			try {
+				if (iwc.isParameterSet(prmMsgNum)) {
+					T.add(getMessage(iwc));
+				} else {
+					T.add(getListMessages(iwc));
+				}
+			} finally {
+				//	Connection is returned to the pool between requests
+				getEmailFinder().logout(emailParams);
 			}
 		} else {
 			T.add(getLogin(iwc));
@@ -79,6 +84,12 @@ public class MailClient extends Block {
 		if (iwc.getSessionAttribute(prmSessionParams) != null) {
 			emailParams = (EmailParams) iwc.getSessionAttribute(prmSessionParams);
 			this.messagesMap = (Map<Integer, MessageInfo>) iwc.getSessionAttribute(prmSessionUserMsgs);
+			if (emailParams.isLoggedOut()) {
+				//	Messages are read again from the borrowed connection
+				getEmailFinder().login(emailParams);
+				this.messagesMap = MessageFinder.getMappedMessagesInfo(emailParams);
+				iwc.setSessionAttribute(prmSessionUserMsgs, this.messagesMap);
+			}
 		} else {
 			if (this.mailaccount != null) {
 
@@ -111,8 +122,7 @@ public class MailClient extends Block {
 
 			if (emailParams != null) {
 
-				EmailSubjectPatternFinder emailFinder = ELUtil.getInstance().getBean(EmailSubjectPatternFinder.BEAN_IDENTIFIER);
-				emailFinder.login(emailParams);
+				getEmailFinder().login(emailParams);
 				this.messagesMap = MessageFinder
 						.getMappedMessagesInfo(emailParams);
 				iwc.setSessionAttribute(prmSessionParams, emailParams);
@@ -121,6 +131,10 @@ public class MailClient extends Block {
 		}
 	}
 
+	private EmailSubjectPatternFinder getEmailFinder() {
+		return ELUtil.getInstance().getBean(EmailSubjectPatternFinder.BEAN_IDENTIFIER);
+	}
+
 	public void processForm(IWContext iwc) {
 
 	}
@@ -24,6 +24,9 @@ public interface Message extends IDOEntity, TreeableEntity, UniqueIDCapable {
 
 	public boolean isDeleted();
 	public void setDeleted(boolean deleted);
+
+	public boolean isFormatted();
+	public void setFormatted(boolean formatted);
 	
 	public String getSenderAdress();
 	public void setSenderAddress(String senderAddress);
@@ -30,6 +30,7 @@ public class MessageBMPBean extends TreeableEntityBMPBean implements Message {
 	public static final String COLUMN_DELETED = "DELETED";
 	public static final String COLUMN_SENDER = "SENDER";
 	public static final String COLUMN_SUBJECT = "SUBJECT";
+	public static final String COLUMN_FORMATTED = "FORMATTED";
 	
 	private static final String MESSAGE_ATTACHMENTS = TABLE_NAME + "_ATTACHMENTS";
 	
@@ -47,6 +48,7 @@ public class MessageBMPBean extends TreeableEntityBMPBean implements Message {
 		addAttribute(COLUMN_DELETED, "Deleted", true, true, Boolean.class);
 		addAttribute(COLUMN_SENDER, "From", true, true, String.class);
 		addAttribute(COLUMN_SUBJECT, "Subject", true, true, String.class);
+		addAttribute(COLUMN_FORMATTED, "Content is formatted for displaying", true, true, Boolean.class);
 		
 		addUniqueIDColumn();
 		addIndex(getUniqueIdColumnName());
@@ -86,6 +88,14 @@ public class MessageBMPBean extends TreeableEntityBMPBean implements Message {
 		setColumn(COLUMN_DELETED, deleted);
 	}
 
+	public boolean isFormatted() {
+		return getBooleanColumnValue(COLUMN_FORMATTED);
+	}
+
+	public void setFormatted(boolean formatted) {
+		setColumn(COLUMN_FORMATTED, formatted);
+	}
+
 	public Integer ejbFindByUniqueId(String uniqueId) throws FinderException {
 		Table table = new Table(this);
 		SelectQuery query = new SelectQuery(table);
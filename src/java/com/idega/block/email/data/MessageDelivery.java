@@ -0,0 +1,49 @@
+package com.idega.block.email.data;
+
+import java.sql.Timestamp;
+
+import com.idega.data.IDOEntity;
+
+/**
+ * Record of delivery to one recipient: of archived {@link Message} and/or of {@link OutboundMail} from the outbound queue, with its retry state
+ */
+public interface MessageDelivery extends IDOEntity {
+
+	public static final String	STATUS_HELD = "HELD",
+								STATUS_PENDING = "PENDING",
+								STATUS_SENDING = "SENDING",
+								STATUS_SENT = "SENT",
+								STATUS_FAILED = "FAILED";
+
+	public int getMessageId();
+	public void setMessageId(int messageId);
+
+	public int getOutboundMailId();
+	public OutboundMail getOutboundMail();
+	public void setOutboundMail(OutboundMail outboundMail);
+	public void removeOutboundMail();
+
+	public String getRecipient();
+	public void setRecipient(String recipient);
+
+	public String getStatus();
+	public void setStatus(String status);
+
+	public String getError();
+	public void setError(String error);
+
+	public int getAttempts();
+	public void setAttempts(int attempts);
+
+	public Timestamp getNextAttempt();
+	public void setNextAttempt(Timestamp nextAttempt);
+
+	/**
+	 * @return node which is sending the delivery
+	 */
+	public String getClaimedBy();
+	public void setClaimedBy(String node);
+
+	public Timestamp getUpdated();
+	public void setUpdated(Timestamp updated);
+}
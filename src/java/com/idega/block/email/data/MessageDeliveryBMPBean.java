@@ -0,0 +1,243 @@
+package com.idega.block.email.data;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import javax.ejb.FinderException;
+
+import com.idega.data.GenericEntity;
+import com.idega.data.query.Column;
+import com.idega.data.query.MatchCriteria;
+import com.idega.data.query.Order;
+import com.idega.data.query.SelectQuery;
+import com.idega.data.query.Table;
+
+public class MessageDeliveryBMPBean extends GenericEntity implements MessageDelivery {
+
+	private static final long serialVersionUID = 3297714655129487380L;
+
+	public static final String TABLE_NAME = "MAIL_MESSAGE_DELIVERY";
+
+	public static final String COLUMN_MESSAGE = "MESSAGE_ID";
+	public static final String COLUMN_OUTBOUND_MAIL = "OUTBOUND_MAIL_ID";
+	public static final String COLUMN_RECIPIENT = "RECIPIENT";
+	public static final String COLUMN_STATUS = "STATUS";
+	public static final String COLUMN_ERROR = "ERROR";
+	public static final String COLUMN_ATTEMPTS = "ATTEMPTS";
+	public static final String COLUMN_NEXT_ATTEMPT = "NEXT_ATTEMPT";
+	public static final String COLUMN_UPDATED = "UPDATED";
+	public static final String COLUMN_CLAIMED_BY = "CLAIMED_BY";
+
+	@Override
+	public String getEntityName() {
+		return TABLE_NAME;
+	}
+
+	@Override
+	public void initializeAttributes() {
+		addAttribute(getIDColumnName());
+
+		addAttribute(COLUMN_MESSAGE, "Message", true, true, Integer.class, MANY_TO_ONE, Message.class);
+		addAttribute(COLUMN_OUTBOUND_MAIL, "Outbound mail", true, true, Integer.class, MANY_TO_ONE, OutboundMail.class);
+		addAttribute(COLUMN_RECIPIENT, "Recipient", true, true, String.class, 255);
+		addAttribute(COLUMN_STATUS, "Status", true, true, String.class, 20);
+		addAttribute(COLUMN_ERROR, "Error", true, true, String.class, 1000);
+		addAttribute(COLUMN_ATTEMPTS, "Attempts", true, true, Integer.class);
+		addAttribute(COLUMN_NEXT_ATTEMPT, "Next attempt", true, true, Timestamp.class);
+		addAttribute(COLUMN_UPDATED, "Updated", true, true, Timestamp.class);
+		addAttribute(COLUMN_CLAIMED_BY, "Claimed by", true, true, String.class, 100);
+
+		addIndex(COLUMN_MESSAGE);
+		addIndex(COLUMN_OUTBOUND_MAIL);
+		addIndex(COLUMN_STATUS);
+	}
+
+	public Collection<Integer> ejbFindAllByMessage(Message message) throws FinderException {
+		return ejbFindAllByMessageAndStatus(message, null);
+	}
+
+	@SuppressWarnings("unchecked")
+	public Collection<Integer> ejbFindAllByMessageAndStatus(Message message, String status) throws FinderException {
+		Table table = new Table(this);
+		SelectQuery query = new SelectQuery(table);
+		query.addColumn(new Column(table, getIDColumnName()));
+
+		query.addCriteria(new MatchCriteria(new Column(table, COLUMN_MESSAGE), MatchCriteria.EQUALS, message.getPrimaryKey().toString()));
+		if (status != null) {
+			query.addCriteria(new MatchCriteria(new Column(table, COLUMN_STATUS), MatchCriteria.EQUALS, status));
+		}
+
+		return idoFindPKsByQuery(query);
+	}
+
+	@SuppressWarnings("unchecked")
+	public Collection<Integer> ejbFindAllByOutboundMail(OutboundMail outboundMail) throws FinderException {
+		Table table = new Table(this);
+		SelectQuery query = new SelectQuery(table);
+		query.addColumn(new Column(table, getIDColumnName()));
+
+		query.addCriteria(new MatchCriteria(new Column(table, COLUMN_OUTBOUND_MAIL), MatchCriteria.EQUALS, outboundMail.getPrimaryKey().toString()));
+
+		return idoFindPKsByQuery(query);
+	}
+
+	@SuppressWarnings("unchecked")
+	public Collection<Integer> ejbFindAllDue(Timestamp time, int maxAmount) throws FinderException {
+		Table table = new Table(this);
+		SelectQuery query = new SelectQuery(table);
+		query.addColumn(new Column(table, getIDColumnName()));
+
+		query.addCriteria(new MatchCriteria(new Column(table, COLUMN_STATUS), MatchCriteria.EQUALS, STATUS_PENDING));
+		query.addCriteria(new MatchCriteria(new Column(table, COLUMN_NEXT_ATTEMPT), MatchCriteria.LESSEQUAL, time));
+		query.addOrder(new Order(new Column(table, COLUMN_NEXT_ATTEMPT), true));
+
+		return idoFindPKsByQuery(query, maxAmount);
+	}
+
+	public int ejbHomeReleaseHeld(OutboundMail outboundMail, Timestamp time) throws SQLException {
+		return executeUpdate("update " + TABLE_NAME + " set " + COLUMN_STATUS + " = ?, " + COLUMN_UPDATED + " = ? where " + COLUMN_OUTBOUND_MAIL +
+				" = ? and " + COLUMN_STATUS + " = ?", STATUS_PENDING, time, outboundMail.getPrimaryKey(), STATUS_HELD);
+	}
+
+	public int ejbHomeClaim(Object deliveryId, String node, Timestamp time) throws SQLException {
+		return executeUpdate("update " + TABLE_NAME + " set " + COLUMN_STATUS + " = ?, " + COLUMN_CLAIMED_BY + " = ?, " + COLUMN_UPDATED + " = ? where " +
+				getIDColumnName() + " = ? and " + COLUMN_STATUS + " = ?", STATUS_SENDING, node, time, deliveryId, STATUS_PENDING);
+	}
+
+	public int ejbHomeRenewClaims(String node, Collection<Integer> outboundMailIds, Timestamp time) throws SQLException {
+		if (outboundMailIds == null || outboundMailIds.isEmpty()) {
+			return 0;
+		}
+
+		StringBuilder sql = new StringBuilder("update ").append(TABLE_NAME).append(" set ").append(COLUMN_UPDATED).append(" = ? where ")
+				.append(COLUMN_STATUS).append(" = ? and ").append(COLUMN_CLAIMED_BY).append(" = ? and ").append(COLUMN_OUTBOUND_MAIL).append(" in (");
+		List<Object> parameters = new ArrayList<Object>(outboundMailIds.size() + 3);
+		parameters.add(time);
+		parameters.add(STATUS_SENDING);
+		parameters.add(node);
+		for (Integer outboundMailId: outboundMailIds) {
+			sql.append(parameters.size() > 3 ? ", ?" : "?");
+			parameters.add(outboundMailId);
+		}
+		sql.append(")");
+		return executeUpdate(sql.toString(), parameters.toArray());
+	}
+
+	public int ejbHomeReleaseExpiredClaims(Timestamp renewedBefore) throws SQLException {
+		return executeUpdate("update " + TABLE_NAME + " set " + COLUMN_STATUS + " = ?, " + COLUMN_CLAIMED_BY + " = null where " + COLUMN_STATUS +
+				" = ? and " + COLUMN_UPDATED + " < ?", STATUS_PENDING, STATUS_SENDING, renewedBefore);
+	}
+
+	/**
+	 * Status is changed by conditional update, so it is not overwritten by concurrent changes of other threads or nodes
+	 *
+	 * @return number of updated rows
+	 */
+	private int executeUpdate(String sql, Object... parameters) throws SQLException {
+		Connection connection = null;
+		PreparedStatement statement = null;
+		try {
+			connection = getConnection();
+			statement = connection.prepareStatement(sql);
+			for (int i = 0; i < parameters.length; i++) {
+				statement.setObject(i + 1, parameters[i]);
+			}
+			return statement.executeUpdate();
+		} finally {
+			if (statement != null) {
+				try {
+					statement.close();
+				} catch (SQLException e) {}
+			}
+			if (connection != null) {
+				freeConnection(connection);
+			}
+		}
+	}
+
+	public int getMessageId() {
+		return getIntColumnValue(COLUMN_MESSAGE);
+	}
+
+	public void setMessageId(int messageId) {
+		setColumn(COLUMN_MESSAGE, messageId);
+	}
+
+	public int getOutboundMailId() {
+		return getIntColumnValue(COLUMN_OUTBOUND_MAIL);
+	}
+
+	public OutboundMail getOutboundMail() {
+		return (OutboundMail) getColumnValue(COLUMN_OUTBOUND_MAIL);
+	}
+
+	public void setOutboundMail(OutboundMail outboundMail) {
+		setColumn(COLUMN_OUTBOUND_MAIL, outboundMail);
+	}
+
+	public void removeOutboundMail() {
+		removeFromColumn(COLUMN_OUTBOUND_MAIL);
+	}
+
+	public String getRecipient() {
+		return getStringColumnValue(COLUMN_RECIPIENT);
+	}
+
+	public void setRecipient(String recipient) {
+		setColumn(COLUMN_RECIPIENT, recipient);
+	}
+
+	public String getStatus() {
+		return getStringColumnValue(COLUMN_STATUS);
+	}
+
+	public void setStatus(String status) {
+		setColumn(COLUMN_STATUS, status);
+	}
+
+	public String getError() {
+		return getStringColumnValue(COLUMN_ERROR);
+	}
+
+	public void setError(String error) {
+		setColumn(COLUMN_ERROR, error);
+	}
+
+	public int getAttempts() {
+		return getIntColumnValue(COLUMN_ATTEMPTS);
+	}
+
+	public void setAttempts(int attempts) {
+		setColumn(COLUMN_ATTEMPTS, attempts);
+	}
+
+	public Timestamp getNextAttempt() {
+		return (Timestamp) getColumnValue(COLUMN_NEXT_ATTEMPT);
+	}
+
+	public void setNextAttempt(Timestamp nextAttempt) {
+		setColumn(COLUMN_NEXT_ATTEMPT, nextAttempt);
+	}
+
+	public String getClaimedBy() {
+		return getStringColumnValue(COLUMN_CLAIMED_BY);
+	}
+
+	public void setClaimedBy(String node) {
+		setColumn(COLUMN_CLAIMED_BY, node);
+	}
+
+	public Timestamp getUpdated() {
+		return (Timestamp) getColumnValue(COLUMN_UPDATED);
+	}
+
+	public void setUpdated(Timestamp updated) {
+		setColumn(COLUMN_UPDATED, updated);
+	}
+
+}
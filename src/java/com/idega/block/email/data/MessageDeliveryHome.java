@@ -0,0 +1,54 @@
+package com.idega.block.email.data;
+
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.Collection;
+
+import javax.ejb.CreateException;
+import javax.ejb.FinderException;
+
+import com.idega.data.IDOHome;
+
+public interface MessageDeliveryHome extends IDOHome {
+
+	public MessageDelivery create() throws CreateException;
+
+	public MessageDelivery findByPrimaryKey(Object key) throws FinderException;
+
+	public Collection<MessageDelivery> findAllByMessage(Message message) throws FinderException;
+
+	public Collection<MessageDelivery> findAllByMessageAndStatus(Message message, String status) throws FinderException;
+
+	public Collection<MessageDelivery> findAllByOutboundMail(OutboundMail outboundMail) throws FinderException;
+
+	/**
+	 * @return pending deliveries of outbound mails which are due at the given time, the most overdue first
+	 */
+	public Collection<MessageDelivery> findAllDue(Timestamp time, int maxAmount) throws FinderException;
+
+	/**
+	 * Makes all held deliveries of the outbound mail pending, in one statement
+	 *
+	 * @return number of deliveries which became pending
+	 */
+	public int releaseHeld(OutboundMail outboundMail, Timestamp time) throws SQLException;
+
+	/**
+	 * Marks pending delivery as being sent by the node
+	 *
+	 * @return <code>1</code> if delivery was claimed, <code>0</code> if it is not pending anymore (e.g. it was claimed by other node)
+	 */
+	public int claim(Object deliveryId, String node, Timestamp time) throws SQLException;
+
+	/**
+	 * Extends lease of deliveries of the outbound mails which are being sent by the node. Claims of other deliveries (e.g. their result could
+	 * not be stored) expire.
+	 */
+	public int renewClaims(String node, Collection<Integer> outboundMailIds, Timestamp time) throws SQLException;
+
+	/**
+	 * Makes pending again deliveries which were being sent, but their lease was not renewed since the given time (the node was stopped)
+	 */
+	public int releaseExpiredClaims(Timestamp renewedBefore) throws SQLException;
+
+}
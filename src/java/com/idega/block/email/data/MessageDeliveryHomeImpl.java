@@ -0,0 +1,86 @@
+package com.idega.block.email.data;
+
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.Collection;
+
+import javax.ejb.CreateException;
+import javax.ejb.FinderException;
+
+import com.idega.data.IDOEntity;
+import com.idega.data.IDOFactory;
+
+public class MessageDeliveryHomeImpl extends IDOFactory implements MessageDeliveryHome {
+
+	private static final long serialVersionUID = -6164526702427395806L;
+
+	@Override
+	protected Class<MessageDelivery> getEntityInterfaceClass() {
+		return MessageDelivery.class;
+	}
+
+	public MessageDelivery create() throws CreateException {
+		return (MessageDelivery) super.createIDO();
+	}
+
+	public MessageDelivery findByPrimaryKey(Object key) throws FinderException {
+		return (MessageDelivery) super.findByPrimaryKeyIDO(key);
+	}
+
+	public Collection<MessageDelivery> findAllByMessage(Message message) throws FinderException {
+		IDOEntity entity = this.idoCheckOutPooledEntity();
+		Collection<Integer> ids = ((MessageDeliveryBMPBean) entity).ejbFindAllByMessage(message);
+		this.idoCheckInPooledEntity(entity);
+		return this.findByPrimaryKeyCollection(ids);
+	}
+
+	public Collection<MessageDelivery> findAllByMessageAndStatus(Message message, String status) throws FinderException {
+		IDOEntity entity = this.idoCheckOutPooledEntity();
+		Collection<Integer> ids = ((MessageDeliveryBMPBean) entity).ejbFindAllByMessageAndStatus(message, status);
+		this.idoCheckInPooledEntity(entity);
+		return this.findByPrimaryKeyCollection(ids);
+	}
+
+	public Collection<MessageDelivery> findAllByOutboundMail(OutboundMail outboundMail) throws FinderException {
+		IDOEntity entity = this.idoCheckOutPooledEntity();
+		Collection<Integer> ids = ((MessageDeliveryBMPBean) entity).ejbFindAllByOutboundMail(outboundMail);
+		this.idoCheckInPooledEntity(entity);
+		return this.findByPrimaryKeyCollection(ids);
+	}
+
+	public Collection<MessageDelivery> findAllDue(Timestamp time, int maxAmount) throws FinderException {
+		IDOEntity entity = this.idoCheckOutPooledEntity();
+		Collection<Integer> ids = ((MessageDeliveryBMPBean) entity).ejbFindAllDue(time, maxAmount);
+		this.idoCheckInPooledEntity(entity);
+		return this.findByPrimaryKeyCollection(ids);
+	}
+
+	public int releaseHeld(OutboundMail outboundMail, Timestamp time) throws SQLException {
+		IDOEntity entity = this.idoCheckOutPooledEntity();
+		int released = ((MessageDeliveryBMPBean) entity).ejbHomeReleaseHeld(outboundMail, time);
+		this.idoCheckInPooledEntity(entity);
+		return released;
+	}
+
+	public int claim(Object deliveryId, String node, Timestamp time) throws SQLException {
+		IDOEntity entity = this.idoCheckOutPooledEntity();
+		int claimed = ((MessageDeliveryBMPBean) entity).ejbHomeClaim(deliveryId, node, time);
+		this.idoCheckInPooledEntity(entity);
+		return claimed;
+	}
+
+	public int renewClaims(String node, Collection<Integer> outboundMailIds, Timestamp time) throws SQLException {
+		IDOEntity entity = this.idoCheckOutPooledEntity();
+		int renewed = ((MessageDeliveryBMPBean) entity).ejbHomeRenewClaims(node, outboundMailIds, time);
+		this.idoCheckInPooledEntity(entity);
+		return renewed;
+	}
+
+	public int releaseExpiredClaims(Timestamp renewedBefore) throws SQLException {
+		IDOEntity entity = this.idoCheckOutPooledEntity();
+		int released = ((MessageDeliveryBMPBean) entity).ejbHomeReleaseExpiredClaims(renewedBefore);
+		this.idoCheckInPooledEntity(entity);
+		return released;
+	}
+
+}
@@ -0,0 +1,35 @@
+package com.idega.block.email.data;
+
+import java.sql.Timestamp;
+
+import com.idega.data.IDOEntity;
+
+/**
+ * Record of e-mail which could not be parsed: how many times it was tried, the last error and whether it was moved to quarantine folder
+ */
+public interface MessageFailure extends IDOEntity {
+
+	public String getMessageKey();
+	public void setMessageKey(String messageKey);
+
+	public String getSubject();
+	public void setSubject(String subject);
+
+	public String getSenderAddress();
+	public void setSenderAddress(String senderAddress);
+
+	public int getAttempts();
+	public void setAttempts(int attempts);
+
+	public String getLastError();
+	public void setLastError(String lastError);
+
+	public Timestamp getFirstFailure();
+	public void setFirstFailure(Timestamp firstFailure);
+
+	public Timestamp getLastFailure();
+	public void setLastFailure(Timestamp lastFailure);
+
+	public boolean isQuarantined();
+	public void setQuarantined(boolean quarantined);
+}
@@ -0,0 +1,135 @@
+package com.idega.block.email.data;
+
+import java.sql.Timestamp;
+import java.util.Collection;
+
+import javax.ejb.FinderException;
+
+import com.idega.data.GenericEntity;
+import com.idega.data.query.Column;
+import com.idega.data.query.MatchCriteria;
+import com.idega.data.query.SelectQuery;
+import com.idega.data.query.Table;
+
+public class MessageFailureBMPBean extends GenericEntity implements MessageFailure {
+
+	private static final long serialVersionUID = -1868335722081504372L;
+
+	public static final String TABLE_NAME = "MAIL_MESSAGE_FAILURE";
+
+	public static final String COLUMN_MESSAGE_KEY = "MESSAGE_KEY";
+	public static final String COLUMN_SUBJECT = "SUBJECT";
+	public static final String COLUMN_SENDER = "SENDER";
+	public static final String COLUMN_ATTEMPTS = "ATTEMPTS";
+	public static final String COLUMN_LAST_ERROR = "LAST_ERROR";
+	public static final String COLUMN_FIRST_FAILURE = "FIRST_FAILURE";
+	public static final String COLUMN_LAST_FAILURE = "LAST_FAILURE";
+	public static final String COLUMN_QUARANTINED = "QUARANTINED";
+
+	@Override
+	public String getEntityName() {
+		return TABLE_NAME;
+	}
+
+	@Override
+	public void initializeAttributes() {
+		addAttribute(getIDColumnName());
+
+		addAttribute(COLUMN_MESSAGE_KEY, "Message-ID or UID of message", true, true, String.class, 255);
+		addAttribute(COLUMN_SUBJECT, "Subject", true, true, String.class, 255);
+		addAttribute(COLUMN_SENDER, "From", true, true, String.class, 255);
+		addAttribute(COLUMN_ATTEMPTS, "Attempts", true, true, Integer.class);
+		addAttribute(COLUMN_LAST_ERROR, "Last error", true, true, String.class, 1000);
+		addAttribute(COLUMN_FIRST_FAILURE, "First failure", true, true, Timestamp.class);
+		addAttribute(COLUMN_LAST_FAILURE, "Last failure", true, true, Timestamp.class);
+		addAttribute(COLUMN_QUARANTINED, "Quarantined", true, true, Boolean.class);
+
+		addIndex(COLUMN_MESSAGE_KEY);
+	}
+
+	public Integer ejbFindByMessageKey(String messageKey) throws FinderException {
+		Table table = new Table(this);
+		SelectQuery query = new SelectQuery(table);
+		query.addColumn(new Column(table, getIDColumnName()));
+
+		query.addCriteria(new MatchCriteria(new Column(table, COLUMN_MESSAGE_KEY), MatchCriteria.EQUALS, messageKey));
+
+		return (Integer) idoFindOnePKByQuery(query);
+	}
+
+	@SuppressWarnings("unchecked")
+	public Collection<Integer> ejbFindAllLastFailedBefore(Timestamp lastFailure) throws FinderException {
+		Table table = new Table(this);
+		SelectQuery query = new SelectQuery(table);
+		query.addColumn(new Column(table, getIDColumnName()));
+
+		query.addCriteria(new MatchCriteria(new Column(table, COLUMN_LAST_FAILURE), MatchCriteria.LESS, lastFailure));
+
+		return idoFindPKsByQuery(query);
+	}
+
+	public String getMessageKey() {
+		return getStringColumnValue(COLUMN_MESSAGE_KEY);
+	}
+
+	public void setMessageKey(String messageKey) {
+		setColumn(COLUMN_MESSAGE_KEY, messageKey);
+	}
+
+	public String getSubject() {
+		return getStringColumnValue(COLUMN_SUBJECT);
+	}
+
+	public void setSubject(String subject) {
+		setColumn(COLUMN_SUBJECT, subject);
+	}
+
+	public String getSenderAddress() {
+		return getStringColumnValue(COLUMN_SENDER);
+	}
+
+	public void setSenderAddress(String senderAddress) {
+		setColumn(COLUMN_SENDER, senderAddress);
+	}
+
+	public int getAttempts() {
+		return getIntColumnValue(COLUMN_ATTEMPTS);
+	}
+
+	public void setAttempts(int attempts) {
+		setColumn(COLUMN_ATTEMPTS, attempts);
+	}
+
+	public String getLastError() {
+		return getStringColumnValue(COLUMN_LAST_ERROR);
+	}
+
+	public void setLastError(String lastError) {
+		setColumn(COLUMN_LAST_ERROR, lastError);
+	}
+
+	public Timestamp getFirstFailure() {
+		return (Timestamp) getColumnValue(COLUMN_FIRST_FAILURE);
+	}
+
+	public void setFirstFailure(Timestamp firstFailure) {
+		setColumn(COLUMN_FIRST_FAILURE, firstFailure);
+	}
+
+	public Timestamp getLastFailure() {
+		return (Timestamp) getColumnValue(COLUMN_LAST_FAILURE);
+	}
+
+	public void setLastFailure(Timestamp lastFailure) {
+		setColumn(COLUMN_LAST_FAILURE, lastFailure);
+	}
+
+	public boolean isQuarantined() {
+		return getBooleanColumnValue(COLUMN_QUARANTINED);
+	}
+
+	public void setQuarantined(boolean quarantined) {
+		setColumn(COLUMN_QUARANTINED, quarantined);
+	}
+
+}
@@ -0,0 +1,21 @@
+package com.idega.block.email.data;
+
+import java.sql.Timestamp;
+import java.util.Collection;
+
+import javax.ejb.CreateException;
+import javax.ejb.FinderException;
+
+import com.idega.data.IDOHome;
+
+public interface MessageFailureHome extends IDOHome {
+
+	public MessageFailure create() throws CreateException;
+
+	public MessageFailure findByPrimaryKey(Object key) throws FinderException;
+
+	public MessageFailure findByMessageKey(String messageKey) throws FinderException;
+
+	public Collection<MessageFailure> findAllLastFailedBefore(Timestamp lastFailure) throws FinderException;
+
+}
@@ -0,0 +1,43 @@
+package com.idega.block.email.data;
+
+import java.sql.Timestamp;
+import java.util.Collection;
+
+import javax.ejb.CreateException;
+import javax.ejb.FinderException;
+
+import com.idega.data.IDOEntity;
+import com.idega.data.IDOFactory;
+
+public class MessageFailureHomeImpl extends IDOFactory implements MessageFailureHome {
+
+	private static final long serialVersionUID = 4170412958312874013L;
+
+	@Override
+	protected Class<MessageFailure> getEntityInterfaceClass() {
+		return MessageFailure.class;
+	}
+
+	public MessageFailure create() throws CreateException {
+		return (MessageFailure) super.createIDO();
+	}
+
+	public MessageFailure findByPrimaryKey(Object key) throws FinderException {
+		return (MessageFailure) super.findByPrimaryKeyIDO(key);
+	}
+
+	public MessageFailure findByMessageKey(String messageKey) throws FinderException {
+		IDOEntity entity = this.idoCheckOutPooledEntity();
+		Integer pk = ((MessageFailureBMPBean) entity).ejbFindByMessageKey(messageKey);
+		this.idoCheckInPooledEntity(entity);
+		return this.findByPrimaryKey(pk);
+	}
+
+	public Collection<MessageFailure> findAllLastFailedBefore(Timestamp lastFailure) throws FinderException {
+		IDOEntity entity = this.idoCheckOutPooledEntity();
+		Collection<Integer> ids = ((MessageFailureBMPBean) entity).ejbFindAllLastFailedBefore(lastFailure);
+		this.idoCheckInPooledEntity(entity);
+		return this.findByPrimaryKeyCollection(ids);
+	}
+
+}
@@ -0,0 +1,59 @@
+package com.idega.block.email.data;
+
+import java.io.InputStream;
+import java.sql.Timestamp;
+import java.util.Collection;
+
+import com.idega.core.file.data.ICFile;
+import com.idega.data.IDOAddRelationshipException;
+import com.idega.data.IDOEntity;
+import com.idega.data.IDORemoveRelationshipException;
+
+/**
+ * E-mail waiting in the outbound queue. Recipients and status of delivery to each of them are kept as {@link MessageDelivery} records.
+ */
+public interface OutboundMail extends IDOEntity {
+
+	public String getFromAddress();
+	public void setFromAddress(String fromAddress);
+
+	public String getSenderName();
+	public void setSenderName(String senderName);
+
+	public String getSubject();
+	public void setSubject(String subject);
+
+	public InputStream getContent();
+	public void setContent(InputStream content);
+
+	public String getMailType();
+	public void setMailType(String mailType);
+
+	public String getMailServer();
+	public void setMailServer(String mailServer);
+
+	/**
+	 * @return additional headers, one "Name: value" per line
+	 */
+	public String getHeaders();
+	public void setHeaders(String headers);
+
+	public boolean isGrouped();
+	public void setGrouped(boolean grouped);
+
+	public MailAccount getAccount();
+	public void setAccount(MailAccount account);
+
+	/**
+	 * @return archived message of mailing list which is sent, if any
+	 */
+	public Message getMessage();
+	public void setMessage(Message message);
+
+	public Timestamp getCreated();
+	public void setCreated(Timestamp created);
+
+	public Collection<ICFile> getAttachments();
+	public void addAttachment(ICFile attachment) throws IDOAddRelationshipException;
+	public void removeAttachment(ICFile attachment) throws IDORemoveRelationshipException;
+}
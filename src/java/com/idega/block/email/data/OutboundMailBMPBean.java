@@ -0,0 +1,180 @@
+package com.idega.block.email.data;
+
+import java.io.InputStream;
+import java.sql.Timestamp;
+import java.util.Collection;
+
+import javax.ejb.FinderException;
+
+import com.idega.core.file.data.ICFile;
+import com.idega.data.BlobWrapper;
+import com.idega.data.GenericEntity;
+import com.idega.data.IDOAddRelationshipException;
+import com.idega.data.IDORelationshipException;
+import com.idega.data.IDORemoveRelationshipException;
+import com.idega.data.query.Column;
+import com.idega.data.query.MatchCriteria;
+import com.idega.data.query.SelectQuery;
+import com.idega.data.query.Table;
+
+@SuppressWarnings("unchecked")
+public class OutboundMailBMPBean extends GenericEntity implements OutboundMail {
+
+	private static final long serialVersionUID = -2520413930473460529L;
+
+	public static final String TABLE_NAME = "MAIL_OUTBOUND";
+
+	public static final String COLUMN_FROM = "FROM_ADDRESS";
+	public static final String COLUMN_SENDER_NAME = "SENDER_NAME";
+	public static final String COLUMN_SUBJECT = "SUBJECT";
+	public static final String COLUMN_CONTENT = "CONTENT";
+	public static final String COLUMN_MAIL_TYPE = "MAIL_TYPE";
+	public static final String COLUMN_MAIL_SERVER = "MAIL_SERVER";
+	public static final String COLUMN_HEADERS = "HEADERS";
+	public static final String COLUMN_GROUPED = "GROUPED";
+	public static final String COLUMN_ACCOUNT = "ACCOUNT_ID";
+	public static final String COLUMN_MESSAGE = "MESSAGE_ID";
+	public static final String COLUMN_CREATED = "CREATED";
+
+	private static final String OUTBOUND_ATTACHMENTS = TABLE_NAME + "_ATTACHMENTS";
+
+	@Override
+	public String getEntityName() {
+		return TABLE_NAME;
+	}
+
+	@Override
+	public void initializeAttributes() {
+		addAttribute(getIDColumnName());
+
+		addAttribute(COLUMN_FROM, "From", true, true, String.class, 255);
+		addAttribute(COLUMN_SENDER_NAME, "Sender name", true, true, String.class, 255);
+		addAttribute(COLUMN_SUBJECT, "Subject", true, true, String.class, 1000);
+		addAttribute(COLUMN_CONTENT, "Content", true, true, BlobWrapper.class);
+		addAttribute(COLUMN_MAIL_TYPE, "Mail type", true, true, String.class, 100);
+		addAttribute(COLUMN_MAIL_SERVER, "Mail server", true, true, String.class, 255);
+		addAttribute(COLUMN_HEADERS, "Additional headers", true, true, String.class, 4000);
+		addAttribute(COLUMN_GROUPED, "Recipients are grouped", true, true, Boolean.class);
+		addAttribute(COLUMN_ACCOUNT, "SMTP account", true, true, Integer.class, MANY_TO_ONE, MailAccount.class);
+		addAttribute(COLUMN_MESSAGE, "Archived message", true, true, Integer.class, MANY_TO_ONE, Message.class);
+		addAttribute(COLUMN_CREATED, "Created", true, true, Timestamp.class);
+
+		addManyToManyRelationShip(ICFile.class, OUTBOUND_ATTACHMENTS);
+	}
+
+	public Collection<Integer> ejbFindAllCreatedBefore(Timestamp created) throws FinderException {
+		Table table = new Table(this);
+		SelectQuery query = new SelectQuery(table);
+		query.addColumn(new Column(table, getIDColumnName()));
+
+		query.addCriteria(new MatchCriteria(new Column(table, COLUMN_CREATED), MatchCriteria.LESS, created));
+
+		return idoFindPKsByQuery(query);
+	}
+
+	public String getFromAddress() {
+		return getStringColumnValue(COLUMN_FROM);
+	}
+
+	public void setFromAddress(String fromAddress) {
+		setColumn(COLUMN_FROM, fromAddress);
+	}
+
+	public String getSenderName() {
+		return getStringColumnValue(COLUMN_SENDER_NAME);
+	}
+
+	public void setSenderName(String senderName) {
+		setColumn(COLUMN_SENDER_NAME, senderName);
+	}
+
+	public String getSubject() {
+		return getStringColumnValue(COLUMN_SUBJECT);
+	}
+
+	public void setSubject(String subject) {
+		setColumn(COLUMN_SUBJECT, subject);
+	}
+
+	public InputStream getContent() {
+		return getInputStreamColumnValue(COLUMN_CONTENT);
+	}
+
+	public void setContent(InputStream content) {
+		setColumn(COLUMN_CONTENT, content);
+	}
+
+	public String getMailType() {
+		return getStringColumnValue(COLUMN_MAIL_TYPE);
+	}
+
+	public void setMailType(String mailType) {
+		setColumn(COLUMN_MAIL_TYPE, mailType);
+	}
+
+	public String getMailServer() {
+		return getStringColumnValue(COLUMN_MAIL_SERVER);
+	}
+
+	public void setMailServer(String mailServer) {
+		setColumn(COLUMN_MAIL_SERVER, mailServer);
+	}
+
+	public String getHeaders() {
+		return getStringColumnValue(COLUMN_HEADERS);
+	}
+
+	public void setHeaders(String headers) {
+		setColumn(COLUMN_HEADERS, headers);
+	}
+
+	public boolean isGrouped() {
+		return getBooleanColumnValue(COLUMN_GROUPED);
+	}
+
+	public void setGrouped(boolean grouped) {
+		setColumn(COLUMN_GROUPED, grouped);
+	}
+
+	public MailAccount getAccount() {
+		return (MailAccount) getColumnValue(COLUMN_ACCOUNT);
+	}
+
+	public void setAccount(MailAccount account) {
+		setColumn(COLUMN_ACCOUNT, account);
+	}
+
+	public Message getMessage() {
+		return (Message) getColumnValue(COLUMN_MESSAGE);
+	}
+
+	public void setMessage(Message message) {
+		setColumn(COLUMN_MESSAGE, message);
+	}
+
+	public Timestamp getCreated() {
+		return (Timestamp) getColumnValue(COLUMN_CREATED);
+	}
+
+	public void setCreated(Timestamp created) {
+		setColumn(COLUMN_CREATED, created);
+	}
+
+	public Collection<ICFile> getAttachments() {
+		try {
+			return this.idoGetRelatedEntities(ICFile.class);
+		} catch (IDORelationshipException e) {
+			e.printStackTrace();
+		}
+		return null;
+	}
+
+	public void addAttachment(ICFile attachment) throws IDOAddRelationshipException {
+		this.idoAddTo(attachment);
+	}
+
+	public void removeAttachment(ICFile attachment) throws IDORemoveRelationshipException {
+		this.idoRemoveFrom(attachment);
+	}
+
+}
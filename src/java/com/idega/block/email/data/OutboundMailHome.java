@@ -0,0 +1,19 @@
+package com.idega.block.email.data;
+
+import java.sql.Timestamp;
+import java.util.Collection;
+
+import javax.ejb.CreateException;
+import javax.ejb.FinderException;
+
+import com.idega.data.IDOHome;
+
+public interface OutboundMailHome extends IDOHome {
+
+	public OutboundMail create() throws CreateException;
+
+	public OutboundMail findByPrimaryKey(Object key) throws FinderException;
+
+	public Collection<OutboundMail> findAllCreatedBefore(Timestamp created) throws FinderException;
+
+}
@@ -0,0 +1,36 @@
+package com.idega.block.email.data;
+
+import java.sql.Timestamp;
+import java.util.Collection;
+
+import javax.ejb.CreateException;
+import javax.ejb.FinderException;
+
+import com.idega.data.IDOEntity;
+import com.idega.data.IDOFactory;
+
+public class OutboundMailHomeImpl extends IDOFactory implements OutboundMailHome {
+
+	private static final long serialVersionUID = 1839271506148843207L;
+
+	@Override
+	protected Class<OutboundMail> getEntityInterfaceClass() {
+		return OutboundMail.class;
+	}
+
+	public OutboundMail create() throws CreateException {
+		return (OutboundMail) super.createIDO();
+	}
+
+	public OutboundMail findByPrimaryKey(Object key) throws FinderException {
+		return (OutboundMail) super.findByPrimaryKeyIDO(key);
+	}
+
+	public Collection<OutboundMail> findAllCreatedBefore(Timestamp created) throws FinderException {
+		IDOEntity entity = this.idoCheckOutPooledEntity();
+		Collection<Integer> ids = ((OutboundMailBMPBean) entity).ejbFindAllCreatedBefore(created);
+		this.idoCheckInPooledEntity(entity);
+		return this.findByPrimaryKeyCollection(ids);
+	}
+
+}
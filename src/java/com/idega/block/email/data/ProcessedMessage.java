@@ -0,0 +1,20 @@
+package com.idega.block.email.data;
+
+import java.sql.Timestamp;
+
+import com.idega.data.IDOEntity;
+
+/**
+ * Record of e-mail which was already processed, used to skip the same e-mail if it is found again (e.g. moving it out of inbox failed)
+ */
+public interface ProcessedMessage extends IDOEntity {
+
+	public String getMessageId();
+	public void setMessageId(String messageId);
+
+	public String getEnvelopeHash();
+	public void setEnvelopeHash(String envelopeHash);
+
+	public Timestamp getProcessed();
+	public void setProcessed(Timestamp processed);
+}
@@ -0,0 +1,86 @@
+package com.idega.block.email.data;
+
+import java.sql.Timestamp;
+import java.util.Collection;
+
+import javax.ejb.FinderException;
+
+import com.idega.data.GenericEntity;
+import com.idega.data.query.Column;
+import com.idega.data.query.MatchCriteria;
+import com.idega.data.query.SelectQuery;
+import com.idega.data.query.Table;
+
+public class ProcessedMessageBMPBean extends GenericEntity implements ProcessedMessage {
+
+	private static final long serialVersionUID = 2263941958047213608L;
+
+	public static final String TABLE_NAME = "MAIL_PROCESSED_MESSAGE";
+
+	public static final String COLUMN_MESSAGE_ID = "MESSAGE_ID";
+	public static final String COLUMN_ENVELOPE_HASH = "ENVELOPE_HASH";
+	public static final String COLUMN_PROCESSED = "PROCESSED";
+
+	@Override
+	public String getEntityName() {
+		return TABLE_NAME;
+	}
+
+	@Override
+	public void initializeAttributes() {
+		addAttribute(getIDColumnName());
+
+		addAttribute(COLUMN_MESSAGE_ID, "Message-ID", true, true, String.class, 255);
+		addAttribute(COLUMN_ENVELOPE_HASH, "Hash of message envelope", true, true, String.class, 64);
+		addAttribute(COLUMN_PROCESSED, "Processed", true, true, Timestamp.class);
+
+		addIndex(COLUMN_ENVELOPE_HASH);
+		addIndex(COLUMN_PROCESSED);
+	}
+
+	public Integer ejbFindByEnvelopeHash(String envelopeHash) throws FinderException {
+		Table table = new Table(this);
+		SelectQuery query = new SelectQuery(table);
+		query.addColumn(new Column(table, getIDColumnName()));
+
+		query.addCriteria(new MatchCriteria(new Column(table, COLUMN_ENVELOPE_HASH), MatchCriteria.EQUALS, envelopeHash));
+
+		return (Integer) idoFindOnePKByQuery(query);
+	}
+
+	@SuppressWarnings("unchecked")
+	public Collection<Integer> ejbFindAllProcessedBefore(Timestamp processed) throws FinderException {
+		Table table = new Table(this);
+		SelectQuery query = new SelectQuery(table);
+		query.addColumn(new Column(table, getIDColumnName()));
+
+		query.addCriteria(new MatchCriteria(new Column(table, COLUMN_PROCESSED), MatchCriteria.LESS, processed));
+
+		return idoFindPKsByQuery(query);
+	}
+
+	public String getMessageId() {
+		return getStringColumnValue(COLUMN_MESSAGE_ID);
+	}
+
+	public void setMessageId(String messageId) {
+		setColumn(COLUMN_MESSAGE_ID, messageId);
+	}
+
+	public String getEnvelopeHash() {
+		return getStringColumnValue(COLUMN_ENVELOPE_HASH);
+	}
+
+	public void setEnvelopeHash(String envelopeHash) {
+		setColumn(COLUMN_ENVELOPE_HASH, envelopeHash);
+	}
+
+	public Timestamp getProcessed() {
+		return (Timestamp) getColumnValue(COLUMN_PROCESSED);
+	}
+
+	public void setProcessed(Timestamp processed) {
+		setColumn(COLUMN_PROCESSED, processed);
+	}
+
+}
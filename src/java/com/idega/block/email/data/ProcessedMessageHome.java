@@ -0,0 +1,21 @@
+package com.idega.block.email.data;
+
+import java.sql.Timestamp;
+import java.util.Collection;
+
+import javax.ejb.CreateException;
+import javax.ejb.FinderException;
+
+import com.idega.data.IDOHome;
+
+public interface ProcessedMessageHome extends IDOHome {
+
+	public ProcessedMessage create() throws CreateException;
+
+	public ProcessedMessage findByPrimaryKey(Object key) throws FinderException;
+
+	public ProcessedMessage findByEnvelopeHash(String envelopeHash) throws FinderException;
+
+	public Collection<ProcessedMessage> findAllProcessedBefore(Timestamp processed) throws FinderException;
+
+}
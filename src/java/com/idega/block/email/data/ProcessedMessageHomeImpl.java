@@ -0,0 +1,44 @@
+package com.idega.block.email.data;
+
+import java.sql.Timestamp;
+import java.util.Collection;
+
+import javax.ejb.CreateException;
+import javax.ejb.FinderException;
+
+import com.idega.data.IDOEntity;
+import com.idega.data.IDOFactory;
+
+public class ProcessedMessageHomeImpl extends IDOFactory implements ProcessedMessageHome {
+
+	private static final long serialVersionUID = -7030125417203951460L;
+
+	@Override
+	protected Class<ProcessedMessage> getEntityInterfaceClass() {
+		return ProcessedMessage.class;
+	}
+
+	public ProcessedMessage create() throws CreateException {
+		return (ProcessedMessage) super.createIDO();
+	}
+
+	public ProcessedMessage findByPrimaryKey(Object key) throws FinderException {
+		return (ProcessedMessage) super.findByPrimaryKeyIDO(key);
+	}
+
+	public ProcessedMessage findByEnvelopeHash(String envelopeHash) throws FinderException {
+		IDOEntity entity = this.idoCheckOutPooledEntity();
+		Integer pk = ((ProcessedMessageBMPBean) entity).ejbFindByEnvelopeHash(envelopeHash);
+		this.idoCheckInPooledEntity(entity);
+		return this.findByPrimaryKey(pk);
+	}
+
+	@SuppressWarnings("unchecked")
+	public Collection<ProcessedMessage> findAllProcessedBefore(Timestamp processed) throws FinderException {
+		IDOEntity entity = this.idoCheckOutPooledEntity();
+		Collection<Integer> ids = ((ProcessedMessageBMPBean) entity).ejbFindAllProcessedBefore(processed);
+		this.idoCheckInPooledEntity(entity);
+		return this.findByPrimaryKeyCollection(ids);
+	}
+
+}
@@ -27,6 +27,7 @@ public interface MailingListManager {
 	public boolean unsubscribeFromMailingList(String uniqueId, String subscriberEmailAddress);
 	public boolean unsubscribeFromMailingLists(Collection<String> uniqueIds, String subscriberEmailAddress);
 	public boolean unsubscribeFromMailingList(String uniqueId, User subscriber);
+	public boolean unsubscribeFromMailingList(MailingList mailingList, User subscriber);
 	public boolean unsubscribeFromMailingLists(Collection<String> uniqueIds, User subscriber);
 	
 	public Collection<MailingList> getAllMailingLists();
@@ -7,6 +7,8 @@ import java.util.logging.Logger;
 
 import javax.ejb.CreateException;
 import javax.ejb.FinderException;
+
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.config.BeanDefinition;
 import org.springframework.context.annotation.Scope;
 import org.springframework.stereotype.Service;
@@ -34,6 +36,9 @@ public class MailingListManagerImpl implements MailingListManager {
 
 	private static final Logger LOGGER = Logger.getLogger(MailingListManagerImpl.class.getName());
 	
+	@Autowired
+	private MailingListRecipientsCache recipientsCache;
+	
 	public MailingList createMailingList(String name) {
 		if (StringUtil.isEmpty(name)) {
 			LOGGER.warning("Name can not be empty!");
@@ -97,6 +102,7 @@ public class MailingListManagerImpl implements MailingListManager {
 			}
 		}
 		newMailingList.store();
+		recipientsCache.invalidate(newMailingList);
 		
 		return newMailingList;
 	}
@@ -197,6 +203,7 @@ public class MailingListManagerImpl implements MailingListManager {
 				try {
 					mailingList.addSubscriber(subscriber);
 					mailingList.store();
+					recipientsCache.invalidate(mailingList);
 					return true;
 				} catch (IDOAddRelationshipException e) {
 					LOGGER.log(Level.WARNING, "Error adding " + subscriber + " to mailing list: " + mailingList.getName(), e);
@@ -236,14 +243,18 @@ public class MailingListManagerImpl implements MailingListManager {
 			return false;
 		}
 		
-		MailingList mailingList = getMailingListByUniqueId(uniqueId);
-		if (mailingList == null) {
+		return unsubscribeFromMailingList(getMailingListByUniqueId(uniqueId), subscriber);
+	}
+	
+	public boolean unsubscribeFromMailingList(MailingList mailingList, User subscriber) {
+		if (mailingList == null || subscriber == null) {
 			return false;
 		}
 		
 		try {
 			mailingList.removeSubscriber(subscriber);
 			mailingList.store();
+			recipientsCache.invalidate(mailingList);
 			return true;
 		} catch (IDORemoveRelationshipException e) {
 			LOGGER.log(Level.WARNING, "Error while unsubscribing " + subscriber.getName() + " from mailing list: " + mailingList.getName(), e);
@@ -332,6 +343,17 @@ public class MailingListManagerImpl implements MailingListManager {
 		if (mailingList == null) {
 			return false;
 		}
+		
+		try {
+			return doEditMailingList(mailingList, name, senderEmail, senderName, isPrivate, subscribers, confirmedFromWaitingList, senders);
+		} finally {
+			//	Relations are changed even if editing fails in the middle
+			recipientsCache.invalidate(mailingList);
+		}
+	}
+	
+	private boolean doEditMailingList(MailingList mailingList, String name, String senderEmail, String senderName, boolean isPrivate,
+			Collection<User> subscribers, Collection<User> confirmedFromWaitingList, Collection<User> senders) {
 		if (StringUtil.isEmpty(name)) {
 			LOGGER.warning("Name must be provided!");
 			return false;
@@ -584,6 +606,7 @@ public class MailingListManagerImpl implements MailingListManager {
 			}
 		}
 		
+		recipientsCache.invalidate(mailingList);
 		try {
 			mailingList.remove();
 		} catch (Exception e) {
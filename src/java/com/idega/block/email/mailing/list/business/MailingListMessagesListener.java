@@ -1,26 +1,169 @@
 package com.idega.block.email.mailing.list.business;
 
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
 import org.springframework.beans.factory.config.BeanDefinition;
 import org.springframework.context.ApplicationEvent;
 import org.springframework.context.ApplicationListener;
 import org.springframework.context.annotation.Scope;
 import org.springframework.stereotype.Service;
 
+import com.idega.block.email.bean.FoundMessagesInfo;
+import com.idega.block.email.bean.MessageParserType;
 import com.idega.block.email.client.business.ApplicationEmailEvent;
+import com.idega.idegaweb.IWMainApplication;
+import com.idega.idegaweb.IWMainApplicationSettings;
+import com.idega.idegaweb.IWMainApplicationShutdownEvent;
 
 @Service
 @Scope(BeanDefinition.SCOPE_SINGLETON)
 public class MailingListMessagesListener implements ApplicationListener {
 
+	private static final Logger LOGGER = Logger.getLogger(MailingListMessagesListener.class.getName());
+
+	private static final String PROP_WORKERS = "mailing_list_workers",
+								PROP_QUEUE_SIZE = "mailing_list_workers_queue",
+								PROP_SHUTDOWN_TIMEOUT = "mailing_list_workers_shutdown_timeout";
+
+	private static final int DEFAULT_WORKERS = 2, DEFAULT_QUEUE_SIZE = 100;
+	private static final long DEFAULT_SHUTDOWN_TIMEOUT = 60000;
+
+	private ThreadPoolExecutor workers;
+	private boolean shutDown;
+
+	private final AtomicLong submitted = new AtomicLong(), completed = new AtomicLong(), failed = new AtomicLong(), rejected = new AtomicLong();
+
 	public void onApplicationEvent(ApplicationEvent event) {
+		if (event instanceof IWMainApplicationShutdownEvent) {
+			shutdown();
+			return;
+		}
+
 		if (!(event instanceof ApplicationEmailEvent)) {
 			return;
 		}
 
 		ApplicationEmailEvent emailEvent = (ApplicationEmailEvent) event;
-		MailingListMessagesWorker mailingListMessagesWorker = new MailingListMessagesWorker(emailEvent.getMessages(), emailEvent.getEmailParams());
-		Thread worker = new Thread(mailingListMessagesWorker);
-		worker.start();
+		if (!hasMailingListMessages(emailEvent.getMessages())) {
+			return;
+		}
+
+		final MailingListMessagesWorker mailingListMessagesWorker = new MailingListMessagesWorker(emailEvent.getMessages(), emailEvent.getEmailParams());
+		ThreadPoolExecutor workers = getWorkers();
+		if (workers == null) {
+			rejected.incrementAndGet();
+			LOGGER.warning("Mailing list workers are shut down, messages are left in the inbox: " + emailEvent.getMessages().keySet());
+			return;
+		}
+
+		submitted.incrementAndGet();
+		workers.execute(new Runnable() {
+			public void run() {
+				try {
+					mailingListMessagesWorker.run();
+					completed.incrementAndGet();
+				} catch (RuntimeException e) {
+					failed.incrementAndGet();
+					throw e;
+				}
+			}
+		});
+	}
+
+	private boolean hasMailingListMessages(Map<String, FoundMessagesInfo> messages) {
+		if (messages == null || messages.isEmpty()) {
+			return false;
+		}
+
+		for (FoundMessagesInfo info: messages.values()) {
+			if (info != null && info.getParserType() == MessageParserType.MAILING_LIST) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return pool of workers or <code>null</code> if application is being shut down
+	 */
+	private synchronized ThreadPoolExecutor getWorkers() {
+		if (shutDown) {
+			return null;
+		}
+
+		if (workers == null) {
+			IWMainApplicationSettings settings = IWMainApplication.getDefaultIWMainApplication().getSettings();
+			int poolSize = Integer.valueOf(settings.getProperty(PROP_WORKERS, String.valueOf(DEFAULT_WORKERS)));
+			int queueSize = Integer.valueOf(settings.getProperty(PROP_QUEUE_SIZE, String.valueOf(DEFAULT_QUEUE_SIZE)));
+
+			final AtomicInteger threadNumber = new AtomicInteger();
+			workers = new ThreadPoolExecutor(poolSize, poolSize, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(queueSize),
+				new ThreadFactory() {
+					public Thread newThread(Runnable runnable) {
+						return new Thread(runnable, "mailing_list_worker_" + threadNumber.incrementAndGet());
+					}
+				},
+				new RejectedExecutionHandler() {
+					//	Queue is full: the publisher (e-mail daemon) delivers messages itself, this slows down scanning instead of losing messages
+					public void rejectedExecution(Runnable runnable, ThreadPoolExecutor executor) {
+						rejected.incrementAndGet();
+						if (executor.isShutdown()) {
+							LOGGER.warning("Mailing list workers are shut down (" + getStatistics() + "), messages are left in the inbox");
+							return;
+						}
+
+						LOGGER.warning("Mailing list workers are busy (" + getStatistics() + "), running worker in thread " +
+								Thread.currentThread().getName());
+						runnable.run();
+					}
+				}
+			);
+			workers.allowCoreThreadTimeOut(true);
+		}
+		return workers;
+	}
+
+	/**
+	 * Stops accepting new messages and waits for queued ones to be delivered
+	 */
+	private void shutdown() {
+		ThreadPoolExecutor workers = null;
+		synchronized (this) {
+			//	Pool is not created again by events published while shutting down
+			shutDown = true;
+			workers = this.workers;
+		}
+		if (workers == null) {
+			return;
+		}
+
+		workers.shutdown();
+		try {
+			long timeout = Long.valueOf(IWMainApplication.getDefaultIWMainApplication().getSettings().getProperty(PROP_SHUTDOWN_TIMEOUT,
+					String.valueOf(DEFAULT_SHUTDOWN_TIMEOUT)));
+			if (!workers.awaitTermination(timeout, TimeUnit.MILLISECONDS)) {
+				LOGGER.warning("Mailing list workers did not finish in " + timeout + " ms: " + getStatistics());
+				workers.shutdownNow();
+			}
+		} catch (InterruptedException e) {
+			LOGGER.log(Level.WARNING, "Interrupted while waiting for mailing list workers", e);
+			workers.shutdownNow();
+		}
+	}
+
+	public String getStatistics() {
+		ThreadPoolExecutor workers = this.workers;
+		return "submitted: " + submitted.get() + ", completed: " + completed.get() + ", failed: " + failed.get() + ", rejected: " + rejected.get() +
+			(workers == null ? "" : ", active: " + workers.getActiveCount() + ", queued: " + workers.getQueue().size());
 	}
 
 }
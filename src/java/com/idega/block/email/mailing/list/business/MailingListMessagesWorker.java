@@ -3,10 +3,10 @@ package com.idega.block.email.mailing.list.business;
 import java.io.File;
 import java.io.FileInputStream;
 import java.sql.Timestamp;
-import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -21,14 +21,13 @@ import org.springframework.stereotype.Service;
 
 import com.idega.block.email.bean.FoundMessagesInfo;
 import com.idega.block.email.bean.MessageParserType;
+import com.idega.block.email.bean.OutboundMailParameters;
+import com.idega.block.email.business.OutboundMailQueue;
 import com.idega.block.email.client.business.EmailParams;
 import com.idega.block.email.client.business.EmailSubjectPatternFinder;
 import com.idega.block.email.data.MessageHome;
 import com.idega.block.email.mailing.list.data.MailingList;
-import com.idega.block.email.parser.EmailParser;
-import com.idega.business.IBOLookup;
-import com.idega.business.IBOLookupException;
-import com.idega.core.contact.data.Email;
+import com.idega.block.email.parser.DefaultMessageParser;
 import com.idega.core.file.data.ICFile;
 import com.idega.core.file.data.ICFileHome;
 import com.idega.core.file.util.MimeTypeUtil;
@@ -36,31 +35,42 @@ import com.idega.core.messaging.EmailMessage;
 import com.idega.core.messaging.MessagingSettings;
 import com.idega.data.IDOLookup;
 import com.idega.idegaweb.IWMainApplication;
-import com.idega.user.business.UserBusiness;
-import com.idega.user.data.User;
 import com.idega.util.CoreConstants;
 import com.idega.util.IWTimestamp;
 import com.idega.util.ListUtil;
 import com.idega.util.StringHandler;
 import com.idega.util.StringUtil;
 import com.idega.util.expression.ELUtil;
+import com.idega.util.text.TextSoap;
 
 @Service
 @Scope(BeanDefinition.SCOPE_PROTOTYPE)
 public class MailingListMessagesWorker implements Runnable {
 
 	private static final Logger LOGGER = Logger.getLogger(MailingListMessagesWorker.class.getName());
+
+	private static final String PROP_STREAMING_PARSER = "mailing_list_streaming_parser";
 	
 	@Autowired
 	private MailingListManager mailingListManager;
 	
+	@Autowired
+	private MailingListRecipientsCache recipientsCache;
+	
 	@Autowired()
 	@Qualifier("defaultEmailsParser")
-	private EmailParser emailParser;
+	private DefaultMessageParser emailParser;
+
+	@Autowired
+	@Qualifier("streamingEmailsParser")
+	private DefaultMessageParser streamingEmailParser;
 	
 	@Autowired
 	private EmailSubjectPatternFinder emailsFinder;
 	
+	@Autowired
+	private OutboundMailQueue outboundMailQueue;
+	
 	private Map<String, FoundMessagesInfo> messages;
 	private EmailParams params;
 	
@@ -94,6 +104,12 @@ public class MailingListMessagesWorker implements Runnable {
 			
 			sendMessagesToMailingList(mailingList, info);
 		}
+
+		try {
+			emailsFinder.flushMovedMessages(params);
+		} catch (Exception e) {
+			LOGGER.log(Level.WARNING, "Error moving processed messages", e);
+		}
 	}
 	
 	private void sendMessagesToMailingList(MailingList mailingList, FoundMessagesInfo messagesInfo) {
@@ -114,21 +130,21 @@ public class MailingListMessagesWorker implements Runnable {
 			return;
 		}
 		
-		Collection<User> subscribers = mailingList.getSubscribers();
-		if (ListUtil.isEmpty(subscribers)) {
-			LOGGER.warning("Mailing list " + mailingList.getName() + " doesn't have subscribers! Messages were not sent: " + messagesInfo.getMessages());
+		List<String> recipients = recipientsCache.getSubscriberAddresses(mailingList);
+		if (ListUtil.isEmpty(recipients)) {
+			LOGGER.warning("Mailing list " + mailingList.getName() + " doesn't have subscribers with e-mail addresses! Messages were not sent: " +
+					messagesInfo.getMessages());
 			return;
 		}
 		
-		Collection<Email> emails = getEmailAddresses(subscribers);
-		if (ListUtil.isEmpty(emails)) {
-			LOGGER.warning("No emails were found for: " + subscribers);
-			return;
-		}
-		
-		List<String> validSenders = getEmailAddressForSenders(mailingList);
+		Set<String> validSenders = recipientsCache.getSenderAddresses(mailingList);
 		if (validSenders == null) {
 			LOGGER.warning("There are no senders set for mailing list '" + mailingList.getName() + "'. ANYBODY can send messages to this mailing list!");
+		} else if (validSenders.isEmpty()) {
+			//	Messages are left in the inbox, they will be checked again when senders are resolved
+			LOGGER.warning("Senders of mailing list '" + mailingList.getName() + "' can not be resolved! Messages were not sent: " +
+					messagesInfo.getMessages());
+			return;
 		}
 		
 		IWMainApplication.getDefaultIWMainApplication().getMessagingSettings().setEmailingEnabled(Boolean.TRUE);
@@ -140,6 +156,8 @@ public class MailingListMessagesWorker implements Runnable {
 		
 		IWTimestamp dayBefore = new IWTimestamp(System.currentTimeMillis());
 		dayBefore.setDay(dayBefore.getDay() - 1);
+
+		emailsFinder.fetchContentInfo(messagesInfo.getMessages());
 		
 		for (Message message: messagesInfo.getMessages()) {
 			try {
@@ -159,11 +177,13 @@ public class MailingListMessagesWorker implements Runnable {
 			
 			EmailMessage parsedMessage = null;
 			try {
-				parsedMessage = emailParser.getParsedMessage(message, params);
+				parsedMessage = getEmailParser().getParsedMessage(message, params);
 			} catch(Exception e) {
 				LOGGER.log(Level.WARNING, "Error parsing message: " + message, e);
 			}
 			if (parsedMessage == null) {
+				//	Message was already processed or could not be parsed (it was registered as failed)
+				skipMessage(message);
 				continue;
 			}
 			
@@ -174,20 +194,59 @@ public class MailingListMessagesWorker implements Runnable {
 			parsedMessage.setMailServer(mailServer);
 			parsedMessage.setMailType(MimeTypeUtil.MIME_TYPE_HTML);
 			
-			for (Email email: emails) {
+			try {
+				//	Message is archived once, for every recipient only the delivery is recorded
+				com.idega.block.email.data.Message archivedMessage = null;
 				try {
-					parsedMessage.setToAddress(email.getEmailAddress());
-					
-					addMessage(mailingList, parsedMessage);
-					
-					parsedMessage.send();
-				} catch(Exception e) {
-					LOGGER.log(Level.WARNING, "Error sending message " + parsedMessage, e);
+					archivedMessage = addMessage(mailingList, parsedMessage);
+				} catch (Exception e) {
+					LOGGER.log(Level.WARNING, "Error archiving message " + parsedMessage, e);
+				}
+				
+				//	Message is sent by the outbound queue, it records delivery to every recipient
+				OutboundMailParameters parameters = new OutboundMailParameters();
+				parameters.setArchivedMessage(archivedMessage);
+				if (getOutboundMailQueue().enqueue(parsedMessage, recipients, parameters) == null) {
+					//	E-mail stays in the inbox and is archived and sent next time
+					LOGGER.warning("Message " + parsedMessage + " was not put to the outbound queue");
+					if (archivedMessage != null) {
+						removeMessage(mailingList, archivedMessage);
+					}
+					skipMessage(message);
+				} else {
+					getEmailParser().markProcessed(message, params);
 				}
+			} finally {
+				//	Attachments are stored with archived or queued message by now
+				getEmailParser().releaseAttachments(message);
 			}
 		}
 	}
 	
+	private OutboundMailQueue getOutboundMailQueue() {
+		if (outboundMailQueue == null) {
+			ELUtil.getInstance().autowire(this);
+		}
+		return outboundMailQueue;
+	}
+	
+	/**
+	 * Streaming parser can be chosen for mailing lists receiving very big messages (it parses small messages in memory anyway)
+	 */
+	private DefaultMessageParser getEmailParser() {
+		return IWMainApplication.getDefaultIWMainApplication().getSettings().getBoolean(PROP_STREAMING_PARSER, false) ?
+				streamingEmailParser :
+				emailParser;
+	}
+
+	private void skipMessage(Message message) {
+		try {
+			emailsFinder.skipMessage(message, params);
+		} catch (Exception e) {
+			LOGGER.log(Level.WARNING, "Error releasing not sent message " + message, e);
+		}
+	}
+
 	private void moveMessageToJunkFolder(Message junkMessage) {		
 		try {
 			emailsFinder.moveMessage(junkMessage, params, "iwlist_junk");
@@ -196,7 +255,7 @@ public class MailingListMessagesWorker implements Runnable {
 		}
 	}
 	
-	private boolean canMessageBeSent(String fromAddress, List<String> validSenders) {
+	private boolean canMessageBeSent(String fromAddress, Set<String> validSenders) {
 		if (validSenders == null) {
 			return true;	//	Nothing set, ANYBODY can send message
 		}
@@ -204,73 +263,64 @@ public class MailingListMessagesWorker implements Runnable {
 		return StringUtil.isEmpty(fromAddress) ? Boolean.FALSE : validSenders.contains(fromAddress);
 	}
 	
-	private List<String> getEmailAddressForSenders(MailingList mailingList) {
-		Collection<User> senders = mailingList.getSenders();
-		if (ListUtil.isEmpty(senders)) {
-			return null;
-		}
-		
-		Collection<Email> emails = getEmailAddresses(senders);
-		if (ListUtil.isEmpty(emails)) {
-			return null;
-		}
-		
-		List<String> addresses = new ArrayList<String>(senders.size());
-		for (Email email: emails) {
-			String emailAddress = email.getEmailAddress();
-			if (!StringUtil.isEmpty(emailAddress) && !addresses.contains(emailAddress)) {
-				addresses.add(emailAddress);
-			}
-		}
-		return addresses;
-	}
-	
-	private void addMessage(MailingList mailingList, EmailMessage emailMessage) throws Exception {
+	private com.idega.block.email.data.Message addMessage(MailingList mailingList, EmailMessage emailMessage) throws Exception {
 		MessageHome messageHome = (MessageHome) IDOLookup.getHome(com.idega.block.email.data.Message.class);
 		com.idega.block.email.data.Message message = messageHome.create();
 		message.setSubject(emailMessage.getSubject());
 		message.setSenderAddress(emailMessage.getFromAddress());
-		message.setMessageContent(StringHandler.getStreamFromString(emailMessage.getBody()));
+		String body = emailMessage.getBody();
+		message.setMessageContent(StringHandler.getStreamFromString(StringUtil.isEmpty(body) ? body : TextSoap.formatText(body)));
+		message.setFormatted(true);
 		message.setReceived(new Timestamp(System.currentTimeMillis()));
 		message.store();
 		
-		Collection<File> attachments = emailMessage.getAttachedFiles();
-		if (!ListUtil.isEmpty(attachments)) {
-			ICFileHome fileHome = (ICFileHome) IDOLookup.getHome(ICFile.class);
-			for (File attachment: attachments) {
-				ICFile attachmentInDB = fileHome.create();
-				attachmentInDB.setName(attachment.getName());
-				attachmentInDB.setFileValue(new FileInputStream(attachment));
-				MimeTypeUtil.resolveMimeTypeFromFileName(attachment.getName());
-				attachmentInDB.setMimeType(MimeTypeUtil.resolveMimeTypeFromFileName(attachment.getName()));
-				attachmentInDB.store();
-				message.addAttachment(attachmentInDB);
+		try {
+			Collection<File> attachments = emailMessage.getAttachedFiles();
+			if (!ListUtil.isEmpty(attachments)) {
+				ICFileHome fileHome = (ICFileHome) IDOLookup.getHome(ICFile.class);
+				for (File attachment: attachments) {
+					ICFile attachmentInDB = fileHome.create();
+					attachmentInDB.setName(attachment.getName());
+					attachmentInDB.setFileValue(new FileInputStream(attachment));
+					MimeTypeUtil.resolveMimeTypeFromFileName(attachment.getName());
+					attachmentInDB.setMimeType(MimeTypeUtil.resolveMimeTypeFromFileName(attachment.getName()));
+					attachmentInDB.store();
+					message.addAttachment(attachmentInDB);
+				}
+				message.store();
 			}
-			message.store();
+			
+			mailingList.addMessage(message);
+			mailingList.store();
+		} catch (Exception e) {
+			//	Partially archived message is not kept, e-mail is archived again next time
+			removeMessage(mailingList, message);
+			throw e;
 		}
 		
-		mailingList.addMessage(message);
-		mailingList.store();
+		return message;
 	}
 	
-	private Collection<Email> getEmailAddresses(Collection<User> users) {
-		UserBusiness userBusiness = null;
+	/**
+	 * Removes archived message of e-mail which was not sent, so it is not archived twice when the e-mail is processed again
+	 */
+	private void removeMessage(MailingList mailingList, com.idega.block.email.data.Message message) {
 		try {
-			userBusiness = IBOLookup.getServiceInstance(IWMainApplication.getDefaultIWApplicationContext(), UserBusiness.class);
-		} catch (IBOLookupException e) {
-			LOGGER.log(Level.WARNING, "Error getting " + UserBusiness.class, e);
-		}
-		if (userBusiness == null) {
-			return null;
-		}
+			mailingList.removeMessage(message);
+		} catch (Exception e) {}
 		
 		try {
-			return userBusiness.getEmailHome().findMainEmailsForUsers(users);
+			Collection<ICFile> attachments = message.getAttachments();
+			if (!ListUtil.isEmpty(attachments)) {
+				for (ICFile attachment: attachments) {
+					message.removeAttachment(attachment);
+					attachment.remove();
+				}
+			}
+			message.remove();
 		} catch (Exception e) {
-			LOGGER.log(Level.WARNING, "Error getting emails for: " + users, e);
+			LOGGER.log(Level.WARNING, "Error removing archived message " + message.getPrimaryKey() + " of mailing list " + mailingList.getName(), e);
 		}
-		
-		return null;
 	}
 
 }
\ No newline at end of file
@@ -0,0 +1,147 @@
+package com.idega.block.email.mailing.list.business;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import org.springframework.beans.factory.config.BeanDefinition;
+import org.springframework.context.annotation.Scope;
+import org.springframework.stereotype.Service;
+
+import com.idega.block.email.mailing.list.data.MailingList;
+import com.idega.idegaweb.IWMainApplication;
+
+/**
+ * Keeps resolved e-mail addresses of subscribers and senders for each mailing list, so messages to the list are sent without loading
+ * subscribers and their e-mails every time. Entries are invalidated by {@link MailingListManager} when list is modified and expire after
+ * the time to live (changes of users' e-mails are not tracked).
+ */
+@Service
+@Scope(BeanDefinition.SCOPE_SINGLETON)
+public class MailingListRecipientsCache {
+
+	private static final Logger LOGGER = Logger.getLogger(MailingListRecipientsCache.class.getName());
+
+	public static final String PROP_TIME_TO_LIVE = "mailing_list_recipients_cache_ttl";
+
+	private static final long DEFAULT_TIME_TO_LIVE = 10 * 60 * 1000;
+
+	private final ConcurrentMap<Object, Recipients> recipients = new ConcurrentHashMap<Object, Recipients>();
+
+	//	Changed by every invalidation, so addresses resolved before it are not cached
+	private final ConcurrentMap<Object, AtomicLong> generations = new ConcurrentHashMap<Object, AtomicLong>();
+	private final AtomicLong generation = new AtomicLong();
+
+	/**
+	 * @return e-mail addresses of the subscribers, never <code>null</code>
+	 */
+	public List<String> getSubscriberAddresses(MailingList mailingList) {
+		return getRecipients(mailingList).subscribers;
+	}
+
+	/**
+	 * @return e-mail addresses of the users allowed to send to the mailing list, <code>null</code> if there are no senders set: anybody
+	 * can send then, or empty set if senders can not be resolved: nobody can send then
+	 */
+	public Set<String> getSenderAddresses(MailingList mailingList) {
+		return getRecipients(mailingList).senders;
+	}
+
+	public void invalidate(MailingList mailingList) {
+		if (mailingList == null || mailingList.getPrimaryKey() == null) {
+			return;
+		}
+
+		Object key = mailingList.getPrimaryKey();
+		getGeneration(key).incrementAndGet();
+		recipients.remove(key);
+	}
+
+	public void invalidateAll() {
+		generation.incrementAndGet();
+		recipients.clear();
+	}
+
+	private Recipients getRecipients(MailingList mailingList) {
+		Object key = mailingList.getPrimaryKey();
+		Recipients cached = recipients.get(key);
+		if (cached != null && System.currentTimeMillis() - cached.created < getTimeToLive()) {
+			return cached;
+		}
+
+		AtomicLong listGeneration = getGeneration(key);
+		long resolvedGeneration = listGeneration.get(), resolvedAllGeneration = generation.get();
+
+		Map<Integer, String> subscribers = mailingList.getSubscribersEmailAddresses();
+		Map<Integer, String> senders = mailingList.getSendersEmailAddresses();
+		Recipients resolved = new Recipients(getSubscriberAddresses(subscribers),
+				senders == null ? Collections.<String>emptySet() : getSenderAddresses(senders));
+		if (subscribers == null || senders == null) {
+			//	Not cached, will be read again next time
+			LOGGER.warning("Failed to resolve e-mail addresses for mailing list: " + mailingList.getName());
+			return resolved;
+		}
+
+		//	If list was invalidated while resolving, entry is removed here or by the invalidation itself
+		recipients.put(key, resolved);
+		if (listGeneration.get() != resolvedGeneration || generation.get() != resolvedAllGeneration) {
+			recipients.remove(key, resolved);
+		}
+		return resolved;
+	}
+
+	private AtomicLong getGeneration(Object key) {
+		AtomicLong listGeneration = generations.get(key);
+		if (listGeneration == null) {
+			listGeneration = new AtomicLong();
+			AtomicLong existing = generations.putIfAbsent(key, listGeneration);
+			listGeneration = existing == null ? listGeneration : existing;
+		}
+		return listGeneration;
+	}
+
+	private List<String> getSubscriberAddresses(Map<Integer, String> addresses) {
+		if (addresses == null || addresses.isEmpty()) {
+			return Collections.emptyList();
+		}
+
+		return Collections.unmodifiableList(new ArrayList<String>(addresses.values()));
+	}
+
+	private Set<String> getSenderAddresses(Map<Integer, String> addresses) {
+		if (addresses == null || addresses.isEmpty()) {
+			return null;
+		}
+
+		return Collections.unmodifiableSet(new HashSet<String>(addresses.values()));
+	}
+
+	private long getTimeToLive() {
+		try {
+			return Long.valueOf(IWMainApplication.getDefaultIWMainApplication().getSettings().getProperty(PROP_TIME_TO_LIVE,
+					String.valueOf(DEFAULT_TIME_TO_LIVE)));
+		} catch (Exception e) {
+			return DEFAULT_TIME_TO_LIVE;
+		}
+	}
+
+	private static class Recipients {
+
+		private final List<String> subscribers;
+		private final Set<String> senders;
+		private final long created = System.currentTimeMillis();
+
+		private Recipients(List<String> subscribers, Set<String> senders) {
+			this.subscribers = subscribers;
+			this.senders = senders;
+		}
+	}
+
+}
@@ -1,6 +1,7 @@
 package com.idega.block.email.mailing.list.data;
 
 import java.util.Collection;
+import java.util.Map;
 
 import com.idega.block.email.data.Message;
 import com.idega.data.IDOAddRelationshipException;
@@ -14,14 +15,17 @@ import com.idega.user.data.User;
 public interface MailingList extends IDOEntity, TreeableEntity, UniqueIDCapable, MetaDataCapable {
 
 	public Collection<User> getSenders();
+	public Map<Integer, String> getSendersEmailAddresses();
 	public void addSender(User sender) throws IDOAddRelationshipException;
 	public void removeSender(User sender) throws IDORemoveRelationshipException;
 	
 	public Collection<User> getSubscribers();
+	public Map<Integer, String> getSubscribersEmailAddresses();
 	public void addSubscriber(User subscriber) throws IDOAddRelationshipException;
 	public void removeSubscriber(User subscriber) throws IDORemoveRelationshipException;
 	
 	public Collection<User> getWaitingList();
+	public Map<Integer, String> getWaitingListEmailAddresses();
 	public void addToWaitingList(User subscriber) throws IDOAddRelationshipException;
 	public void removeFromWaitingList(User subscriber) throws IDORemoveRelationshipException;
 	
@@ -1,12 +1,29 @@
 package com.idega.block.email.mailing.list.data;
 
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
 import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import javax.ejb.FinderException;
 
 import com.idega.block.email.data.Message;
 import com.idega.block.email.data.MessageBMPBean;
+import com.idega.core.contact.data.Email;
+import com.idega.core.contact.data.EmailBMPBean;
+import com.idega.core.contact.data.EmailHome;
+import com.idega.core.contact.data.EmailType;
+import com.idega.core.contact.data.EmailTypeBMPBean;
+import com.idega.data.EntityFinder;
+import com.idega.data.GenericEntity;
 import com.idega.data.IDOAddRelationshipException;
+import com.idega.data.IDOEntity;
+import com.idega.data.IDOLookup;
 import com.idega.data.IDORelationshipException;
 import com.idega.data.IDORemoveRelationshipException;
 import com.idega.data.TreeableEntityBMPBean;
@@ -23,6 +40,8 @@ public class MailingListBMPBean extends TreeableEntityBMPBean implements Mailing
 
 	private static final long serialVersionUID = -5748549253502076077L;
 
+	private static final Logger LOGGER = Logger.getLogger(MailingListBMPBean.class.getName());
+
 	public static final String TABLE_NAME = "MAILING_LIST";
 	public static final String MAILING_LIST_SUBSCRIBERS = TABLE_NAME + "_SUBSCRIBERS";
 	public static final String MAILING_LIST_WAITING = TABLE_NAME + "_WAITING";
@@ -36,11 +55,34 @@ public class MailingListBMPBean extends TreeableEntityBMPBean implements Mailing
 	private static final String SENDER_ADDRESS = "sender_address";
 	private static final String SENDER_NAME = "sender_name";
 
+	private static final int FETCH_SIZE = 500;
+
+	private static volatile Object mainEmailTypeId;
+
 	@Override
 	public String getEntityName() {
 		return TABLE_NAME;
 	}
 
+	/**
+	 * @return primary key of the main e-mail type, resolved once
+	 */
+	private Object getMainEmailTypeId(GenericEntity emailType) throws Exception {
+		if (mainEmailTypeId == null) {
+			@SuppressWarnings("unchecked")
+			Collection<EmailType> types = EntityFinder.getInstance().findAll(EmailType.class, "select * from " + emailType.getEntityName());
+			if (types != null) {
+				for (EmailType type: types) {
+					if (EmailTypeBMPBean.MAIN_EMAIL.equals(type.getUniqueName())) {
+						mainEmailTypeId = type.getPrimaryKey();
+						break;
+					}
+				}
+			}
+		}
+		return mainEmailTypeId;
+	}
+
 	@Override
 	public void initializeAttributes() {
 		addAttribute(getIDColumnName());
@@ -73,6 +115,11 @@ public class MailingListBMPBean extends TreeableEntityBMPBean implements Mailing
 		return null;
 	}
 
+	@Override
+	public Map<Integer, String> getSubscribersEmailAddresses() {
+		return getMainEmailAddresses(MAILING_LIST_SUBSCRIBERS);
+	}
+
 	@Override
 	public void addSubscriber(User subscriber) throws IDOAddRelationshipException {
 		this.idoAddTo(subscriber, MAILING_LIST_SUBSCRIBERS);
@@ -100,6 +147,11 @@ public class MailingListBMPBean extends TreeableEntityBMPBean implements Mailing
 		return null;
 	}
 
+	@Override
+	public Map<Integer, String> getWaitingListEmailAddresses() {
+		return getMainEmailAddresses(MAILING_LIST_WAITING);
+	}
+
 	@Override
 	public void removeFromWaitingList(User subscriber) throws IDORemoveRelationshipException {
 		this.idoRemoveFrom(subscriber, MAILING_LIST_WAITING);
@@ -122,11 +174,87 @@ public class MailingListBMPBean extends TreeableEntityBMPBean implements Mailing
 		return null;
 	}
 
+	@Override
+	public Map<Integer, String> getSendersEmailAddresses() {
+		return getMainEmailAddresses(MAILING_LIST_SENDERS);
+	}
+
 	@Override
 	public void removeSender(User sender) throws IDORemoveRelationshipException {
 		this.idoRemoveFrom(sender, MAILING_LIST_SENDERS);
 	}
 
+	/**
+	 * Reads IDs and main e-mail addresses of the users related to this mailing list by the given relation table in one query, without
+	 * loading users or e-mails. Tables and columns of e-mails are resolved from the core entities, as {@link EmailHome#findMainEmailsForUsers}
+	 * does. Result is read in chunks of {@link #FETCH_SIZE} rows.
+	 *
+	 * @return user ID -> main e-mail address, ordered as in the result, <code>null</code> on error
+	 */
+	private Map<Integer, String> getMainEmailAddresses(String relationTable) {
+		String sql = null;
+		Object typeId = null;
+		try {
+			GenericEntity email = (GenericEntity) IDOLookup.instanciateEntity(Email.class);
+			GenericEntity emailType = (GenericEntity) IDOLookup.instanciateEntity(EmailType.class);
+			String userEmails = getNameOfMiddleTable((IDOEntity) IDOLookup.instanciateEntity(User.class), email);
+			typeId = getMainEmailTypeId(emailType);
+			if (typeId == null) {
+				LOGGER.warning("There is no e-mail type " + EmailTypeBMPBean.MAIN_EMAIL);
+				return null;
+			}
+
+			//	Type of e-mail is referenced by column named as primary key of types' table
+			sql = new StringBuilder("select users.").append(User.FIELD_USER_ID).append(", emails.").append(EmailBMPBean.getColumnNameAddress())
+				.append(" from ").append(relationTable).append(" users, ").append(userEmails).append(" user_emails, ").append(email.getEntityName())
+				.append(" emails where users.").append(getIDColumnName()).append(" = ? and user_emails.").append(User.FIELD_USER_ID)
+				.append(" = users.").append(User.FIELD_USER_ID).append(" and emails.").append(email.getIDColumnName()).append(" = user_emails.")
+				.append(email.getIDColumnName()).append(" and emails.").append(emailType.getIDColumnName()).append(" = ?")
+			.toString();
+		} catch (Exception e) {
+			LOGGER.log(Level.WARNING, "Error resolving tables of e-mails", e);
+			return null;
+		}
+
+		Map<Integer, String> addresses = new LinkedHashMap<Integer, String>();
+		Connection connection = null;
+		PreparedStatement statement = null;
+		ResultSet results = null;
+		try {
+			connection = getConnection();
+			statement = connection.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+			statement.setFetchSize(FETCH_SIZE);
+			statement.setInt(1, getID());
+			statement.setObject(2, typeId);
+			results = statement.executeQuery();
+			while (results.next()) {
+				Integer userId = Integer.valueOf(results.getInt(1));
+				String address = results.getString(2);
+				if (address != null && !addresses.containsKey(userId)) {
+					addresses.put(userId, address.trim());
+				}
+			}
+			return addresses;
+		} catch (SQLException e) {
+			LOGGER.log(Level.WARNING, "Error getting e-mail addresses from " + relationTable + " for mailing list: " + getId(), e);
+		} finally {
+			if (results != null) {
+				try {
+					results.close();
+				} catch (SQLException e) {}
+			}
+			if (statement != null) {
+				try {
+					statement.close();
+				} catch (SQLException e) {}
+			}
+			if (connection != null) {
+				freeConnection(connection);
+			}
+		}
+		return null;
+	}
+
 	@Override
 	public String getName() {
 		return getStringColumnValue(NAME);
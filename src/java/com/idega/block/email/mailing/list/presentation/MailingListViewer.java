@@ -114,7 +114,8 @@ public class MailingListViewer extends BasicMailingList {
 			Layer messageContent = new Layer();
 			messageContainer.getChildren().add(messageContent);
 			messageContent.setStyleClass("mailingListMessageContent");
-			content = StringUtil.isEmpty(content) ? CoreConstants.MINUS : TextSoap.formatText(content);
+			//	Messages stored before formatting was done at receiving are formatted here
+			content = StringUtil.isEmpty(content) ? CoreConstants.MINUS : message.isFormatted() ? content : TextSoap.formatText(content);
 			messageContent.add(new Span(new Text(content)));
 			
 			Collection<ICFile> attachments = message.getAttachments();
@@ -53,12 +53,7 @@ public class UserMailingLists extends BasicMailingList {
 			Collection<MailingList> listsToUnsubscribe = mailingListManager.getMailingLists(iwc.getParameterValues(PARAMETER_UN_SUBSCRIBE_FROM_MAILING_LIST));
 			if (!ListUtil.isEmpty(listsToUnsubscribe)) {
 				for (MailingList listToUnsubscribe: listsToUnsubscribe) {
-					try {
-						listToUnsubscribe.removeSubscriber(currentUser);
-						listToUnsubscribe.store();
-					} catch (IDORemoveRelationshipException e) {
-						e.printStackTrace();
-					}
+					mailingListManager.unsubscribeFromMailingList(listToUnsubscribe, currentUser);
 				}
 			}
 		}
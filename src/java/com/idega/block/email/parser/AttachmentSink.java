@@ -0,0 +1,193 @@
+package com.idega.block.email.parser;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.idega.idegaweb.IWMainApplication;
+import com.idega.util.IOUtil;
+
+/**
+ * Stores contents of attachments while they are read from the mail server. Small attachments are kept in memory, bigger ones are streamed to
+ * temporary files, so memory used by the parser does not depend on the size of attachments. Spilled file is opened only when returned stream is
+ * read and is deleted when the stream is closed: consumer has to close it once the attachment is stored or sent (see
+ * {@link DefaultMessageParser#releaseAttachments(javax.mail.Message)}).
+ */
+public class AttachmentSink {
+
+	private static final Logger LOGGER = Logger.getLogger(AttachmentSink.class.getName());
+
+	public static final String PROP_MEMORY_THRESHOLD = "email_attachment_memory_threshold";
+
+	private static final int DEFAULT_MEMORY_THRESHOLD = 1024 * 1024, BUFFER_SIZE = 8192;
+
+	/**
+	 * Reads the input to the end and closes it
+	 *
+	 * @return stream of the stored content; until it is closed it supports mark and reset, so content can be read more than once
+	 */
+	public InputStream store(InputStream input) throws IOException {
+		if (input == null) {
+			return null;
+		}
+
+		int threshold = getMemoryThreshold();
+		MemoryBuffer memory = new MemoryBuffer(Math.min(BUFFER_SIZE, threshold + 1));
+		File file = null;
+		OutputStream output = null;
+		try {
+			byte[] buffer = new byte[BUFFER_SIZE];
+			int read = -1;
+			while ((read = input.read(buffer)) != -1) {
+				if (output == null && memory.size() + read > threshold) {
+					file = File.createTempFile("email_attachment", ".tmp");
+					output = new FileOutputStream(file);
+					memory.writeTo(output);
+					memory = null;
+				}
+
+				if (output == null) {
+					memory.write(buffer, 0, read);
+				} else {
+					output.write(buffer, 0, read);
+				}
+			}
+		} catch (IOException e) {
+			IOUtil.closeOutputStream(output);
+			output = null;
+			if (file != null && !file.delete()) {
+				file.deleteOnExit();
+			}
+			throw e;
+		} finally {
+			IOUtil.closeInputStream(input);
+			IOUtil.closeOutputStream(output);
+		}
+
+		return file == null ? memory.getInputStream() : new SpilledInputStream(file);
+	}
+
+	private int getMemoryThreshold() {
+		try {
+			return Integer.valueOf(IWMainApplication.getDefaultIWMainApplication().getSettings().getProperty(PROP_MEMORY_THRESHOLD,
+					String.valueOf(DEFAULT_MEMORY_THRESHOLD)));
+		} catch (Exception e) {
+			LOGGER.log(Level.WARNING, "Error resolving memory threshold for attachments", e);
+			return DEFAULT_MEMORY_THRESHOLD;
+		}
+	}
+
+	/**
+	 * Gives the stream over collected bytes without copying them
+	 */
+	private static class MemoryBuffer extends ByteArrayOutputStream {
+
+		private MemoryBuffer(int size) {
+			super(size);
+		}
+
+		private InputStream getInputStream() {
+			return new ByteArrayInputStream(buf, 0, count);
+		}
+	}
+
+	private static class SpilledInputStream extends InputStream {
+
+		private final File file;
+
+		private InputStream stream;
+		private long position, markedPosition;
+		private boolean closed;
+
+		private SpilledInputStream(File file) {
+			this.file = file;
+		}
+
+		private InputStream getStream() throws IOException {
+			if (closed) {
+				throw new IOException("Stream is closed");
+			}
+			if (stream == null) {
+				stream = new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE);
+			}
+			return stream;
+		}
+
+		@Override
+		public int read() throws IOException {
+			int read = getStream().read();
+			if (read != -1) {
+				position++;
+			}
+			return read;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int length) throws IOException {
+			int read = getStream().read(buffer, offset, length);
+			if (read > 0) {
+				position += read;
+			}
+			return read;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			long skipped = getStream().skip(n);
+			position += skipped;
+			return skipped;
+		}
+
+		@Override
+		public int available() throws IOException {
+			long available = file.length() - position;
+			return available > Integer.MAX_VALUE ? Integer.MAX_VALUE : (int) available;
+		}
+
+		@Override
+		public boolean markSupported() {
+			return true;
+		}
+
+		@Override
+		public synchronized void mark(int readLimit) {
+			markedPosition = position;
+		}
+
+		@Override
+		public synchronized void reset() throws IOException {
+			IOUtil.closeInputStream(stream);
+			stream = null;
+			position = 0;
+			while (position < markedPosition) {
+				long skipped = skip(markedPosition - position);
+				if (skipped <= 0) {
+					throw new IOException("Unable to reset stream of " + file);
+				}
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (closed) {
+				return;
+			}
+
+			closed = true;
+			IOUtil.closeInputStream(stream);
+			stream = null;
+			if (!file.delete()) {
+				file.deleteOnExit();
+			}
+		}
+	}
+
+}
@@ -1,14 +1,26 @@
 package com.idega.block.email.parser;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -18,36 +30,63 @@ import javax.mail.Message;
 import javax.mail.MessagingException;
 import javax.mail.Multipart;
 import javax.mail.Part;
+import javax.mail.Session;
+import javax.mail.internet.ContentType;
 import javax.mail.internet.InternetAddress;
-import javax.mail.internet.MimeMultipart;
-import javax.mail.internet.MimeUtility;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.ParseException;
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.ApplicationEvent;
+import org.springframework.context.ApplicationListener;
+import org.springframework.core.OrderComparator;
+import org.springframework.web.context.support.WebApplicationContextUtils;
 
 import com.idega.block.email.EmailConstants;
 import com.idega.block.email.bean.FoundMessagesInfo;
 import com.idega.block.email.client.business.ApplicationEmailEvent;
 import com.idega.block.email.client.business.EmailParams;
+import com.idega.block.email.client.business.EmailQuarantine;
 import com.idega.block.email.client.business.EmailSubjectPatternFinder;
+import com.idega.block.email.client.business.ProcessedMessagesRegistry;
 import com.idega.core.file.util.MimeTypeUtil;
 import com.idega.core.messaging.EmailMessage;
+import com.idega.idegaweb.IWMainApplication;
+import com.idega.idegaweb.IWMainApplicationShutdownEvent;
 import com.idega.util.ArrayUtil;
 import com.idega.util.CoreConstants;
-import com.idega.util.FileUtil;
 import com.idega.util.IOUtil;
 import com.idega.util.ListUtil;
 import com.idega.util.SendMail;
 import com.idega.util.StringUtil;
 import com.idega.util.expression.ELUtil;
-import com.sun.mail.imap.IMAPNestedMessage;
 
-public abstract class DefaultMessageParser implements EmailParser {
+public abstract class DefaultMessageParser implements EmailParser, ApplicationListener {
 
 	private static final Logger LOGGER = Logger.getLogger(DefaultMessageParser.class.getName());
 
+	private static final String PROP_PARSER_THREADS = "email_parser_threads";
+
+	private static ExecutorService parsers;
+	//	Pool is not created when configured for one thread or when application is shutting down
+	private static boolean parsersResolved;
+
+	private final AttachmentSink attachmentSink = new AttachmentSink();
+
+	//	Attachments of parsed messages, kept until consumer of the message releases them
+	private final ConcurrentMap<Message, Map<String, InputStream>> attachmentsInUse = new ConcurrentHashMap<Message, Map<String, InputStream>>();
+
+	private volatile List<EmailBodyTransformer> bodyTransformers;
+
 	@Autowired
 	private EmailSubjectPatternFinder emailsFinder;
 
+	@Autowired
+	private EmailQuarantine quarantine;
+
+	@Autowired
+	private ProcessedMessagesRegistry processedMessagesRegistry;
+
 	@Override
 	public Map<String, Collection<? extends EmailMessage>> getParsedMessages(Map<String, FoundMessagesInfo> messages, EmailParams params) {
 		if (messages == null || messages.isEmpty()) {
@@ -56,14 +95,100 @@ public abstract class DefaultMessageParser implements EmailParser {
 
 		Map<String, Collection<? extends EmailMessage>> parsedMessages = new HashMap<String, Collection<? extends EmailMessage>>();
 
-		for (String key: messages.keySet()) {
-			Collection<Message> messagesByKey = messages.get(key).getMessages();
-			parsedMessages.put(key, getParsedMessages(messagesByKey, params));
+		ExecutorService parsers = messages.size() > 1 ? getParsers() : null;
+		if (parsers == null) {
+			for (String key: messages.keySet()) {
+				Collection<Message> messagesByKey = messages.get(key).getMessages();
+				parsedMessages.put(key, getParsedMessages(messagesByKey, params));
+			}
+			return parsedMessages;
+		}
+
+		//	Messages of different identifiers are parsed concurrently, messages of the same identifier - in the order they were found
+		List<String> keys = new ArrayList<String>(messages.keySet());
+		List<Callable<Collection<EmailMessage>>> tasks = new ArrayList<Callable<Collection<EmailMessage>>>(keys.size());
+		for (String key: keys) {
+			final Collection<Message> messagesByKey = messages.get(key).getMessages();
+			final EmailParams emailParams = params;
+			tasks.add(new Callable<Collection<EmailMessage>>() {
+				@Override
+				public Collection<EmailMessage> call() throws Exception {
+					return getParsedMessages(messagesByKey, emailParams);
+				}
+			});
+		}
+
+		try {
+			List<Future<Collection<EmailMessage>>> results = parsers.invokeAll(tasks);
+			for (int i = 0; i < keys.size(); i++) {
+				try {
+					parsedMessages.put(keys.get(i), results.get(i).get());
+				} catch (ExecutionException e) {
+					LOGGER.log(Level.WARNING, "Error parsing messages for " + keys.get(i), e.getCause());
+					parsedMessages.put(keys.get(i), new ArrayList<EmailMessage>());
+				}
+			}
+		} catch (InterruptedException e) {
+			LOGGER.log(Level.WARNING, "Interrupted while parsing messages", e);
+			Thread.currentThread().interrupt();
 		}
 
 		return parsedMessages;
 	}
 
+	private static ExecutorService getParsers() {
+		synchronized (DefaultMessageParser.class) {
+			if (!parsersResolved) {
+				parsersResolved = true;
+				int threads = Runtime.getRuntime().availableProcessors();
+				try {
+					threads = Integer.valueOf(IWMainApplication.getDefaultIWMainApplication().getSettings().getProperty(PROP_PARSER_THREADS,
+							String.valueOf(threads)));
+				} catch (Exception e) {
+					LOGGER.log(Level.WARNING, "Error resolving number of e-mail parser threads", e);
+				}
+				if (threads <= 1) {
+					LOGGER.info("E-mails will be parsed in the thread of the caller, " + PROP_PARSER_THREADS + " = " + threads);
+					return null;
+				}
+
+				final AtomicInteger threadNumber = new AtomicInteger();
+				ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+					new ThreadFactory() {
+						@Override
+						public Thread newThread(Runnable runnable) {
+							Thread thread = new Thread(runnable, "email_parser_" + threadNumber.incrementAndGet());
+							thread.setDaemon(true);
+							return thread;
+						}
+					}
+				);
+				executor.allowCoreThreadTimeOut(true);
+				parsers = executor;
+			}
+			return parsers;
+		}
+	}
+
+	private static void shutdownParsers() {
+		ExecutorService parsers = null;
+		synchronized (DefaultMessageParser.class) {
+			parsersResolved = true;
+			parsers = DefaultMessageParser.parsers;
+			DefaultMessageParser.parsers = null;
+		}
+		if (parsers != null) {
+			parsers.shutdownNow();
+		}
+	}
+
+	@Override
+	public void onApplicationEvent(ApplicationEvent event) {
+		if (event instanceof IWMainApplicationShutdownEvent) {
+			shutdownParsers();
+		}
+	}
+
 	@Override
 	public Collection<? extends EmailMessage> getParsedMessagesCollection(Map<String, FoundMessagesInfo> messages, EmailParams params) {
 		Map<String, Collection<? extends EmailMessage>> parsedMessages = getParsedMessages(messages, params);
@@ -84,6 +209,8 @@ public abstract class DefaultMessageParser implements EmailParser {
 			return emailMessages;
 		}
 
+		getEmailsFinder().fetchContentInfo(messages);
+
 		for (Message message: messages) {
 			EmailMessage parsedMessage = null;
 			try {
@@ -92,10 +219,19 @@ public abstract class DefaultMessageParser implements EmailParser {
 				LOGGER.log(Level.WARNING, "Error parsing message: " + message, e);
 			}
 			if (parsedMessage != null) {
+				//	Parsed messages are handed over to the caller (e.g. BPM), it is the consumer of them and closes their attachments
+				attachmentsInUse.remove(message);
 				emailMessages.add(parsedMessage);
+				markProcessed(message, params);
 			}
 		}
 
+		try {
+			getEmailsFinder().flushMovedMessages(params);
+		} catch (Exception e) {
+			LOGGER.log(Level.WARNING, "Error moving parsed messages", e);
+		}
+
 		return emailMessages;
 	}
 
@@ -182,26 +318,39 @@ public abstract class DefaultMessageParser implements EmailParser {
 		return false;
 	}
 
+	/**
+	 * Parser is stateless, so this method can be called concurrently. Parsed e-mail stays in the inbox until its consumer handles it and calls
+	 * {@link #markProcessed(Message, EmailParams)}
+	 */
 	@Override
-	public synchronized EmailMessage getParsedMessage(Message message, EmailParams params) throws Exception {
+	public EmailMessage getParsedMessage(Message message, EmailParams params) throws Exception {
 		EmailMessage parsedMessage = null;
-		if (!isValidEmail(message))
-			return null;
-
-		parsedMessage = getNewMessage();
 		try {
+			if (getProcessedMessagesRegistry().isProcessed(message)) {
+				LOGGER.info("Message " + message.getSubject() + " was already processed, skipping it");
+				getEmailsFinder().moveMessage(message, params);
+				return null;
+			}
+
+			if (!isValidEmail(message)) {
+				onParsingFailed(message, params, "Message is not valid");
+				return null;
+			}
+
+			parsedMessage = getNewMessage();
 			parsedMessage.setSubject(message.getSubject());
 
 			Object[] msgAndAttachments = parseContent(message);
 			if (ArrayUtil.isEmpty(msgAndAttachments)) {
 				parsedMessage = null;
+				onParsingFailed(message, params, "There is no parser for content type " + message.getContentType());
 				return parsedMessage;
 			}
 
 			Object body = msgAndAttachments[0];
 			if (body == null)
 				body = CoreConstants.EMPTY;
-			parsedMessage.setBody(body instanceof String ? (String) body : body.toString());
+			parsedMessage.setBody(getTransformedBody(body instanceof String ? (String) body : body.toString(), message));
 
 			String fromAddress = getFromAddress(message);
 
@@ -220,244 +369,364 @@ public abstract class DefaultMessageParser implements EmailParser {
 			@SuppressWarnings("unchecked")
 			Map<String, InputStream> files = (Map<String, InputStream>) msgAndAttachments[1];
 			parsedMessage.setAttachments(files);
+			if (files != null && !files.isEmpty()) {
+				attachmentsInUse.put(message, files);
+			}
 
 			return parsedMessage;
+		} catch (Exception e) {
+			parsedMessage = null;
+			onParsingFailed(message, params, e.toString());
+			throw e;
 		} finally {
 			if (parsedMessage != null) {
-				getEmailsFinder().moveMessage(message, params);
+				onParsingSucceeded(message, params);
 			}
 		}
 	}
 
-	private Object[] parseContent(Message msg) {
-		String messageTxt = CoreConstants.EMPTY;
+	/**
+	 * Remembers that e-mail was handled, so it is skipped when it is found again, and moves it out of the inbox. Must be called by consumer of
+	 * the parsed message only after it was handled successfully. Moving of messages is coordinated by {@link EmailSubjectPatternFinder}
+	 */
+	public void markProcessed(Message message, EmailParams params) {
+		getProcessedMessagesRegistry().markProcessed(message);
+		try {
+			getEmailsFinder().moveMessage(message, params);
+		} catch (Exception e) {
+			LOGGER.log(Level.WARNING, "Error moving processed message " + message, e);
+		}
+	}
+
+	/**
+	 * Closes attachments of the parsed message, temporary files of big attachments are deleted. Has to be called by consumer of the message
+	 * when attachments are stored or sent, no matter if message was processed or skipped
+	 */
+	public void releaseAttachments(Message message) {
+		Map<String, InputStream> attachments = message == null ? null : attachmentsInUse.remove(message);
+		if (attachments != null) {
+			closeAttachments(attachments);
+		}
+	}
+
+	/**
+	 * Message which was not parsed stays in the inbox, so it is counted and quarantined when retry budget is exhausted
+	 */
+	protected void onParsingFailed(Message message, EmailParams params, String error) {
+		if (params == null) {
+			return;
+		}
+
+		try {
+			getQuarantine().onParsingFailed(message, params, error);
+		} catch (Exception e) {
+			LOGGER.log(Level.WARNING, "Error registering failure of message " + message, e);
+		}
+	}
+
+	/**
+	 * Failures of the message before are forgotten, so it is not quarantined because of transient errors
+	 */
+	protected void onParsingSucceeded(Message message, EmailParams params) {
+		if (params == null) {
+			return;
+		}
 
-		Object[] msgAndAttachments = new Object[2];
 		try {
-			Object content = msg.getContent();
-			Map<String, InputStream> attachemntMap = new HashMap<String, InputStream>();
-			msgAndAttachments[1] = attachemntMap;
-			msgAndAttachments[0] = messageTxt;
-			if (msg.isMimeType(MimeTypeUtil.MIME_TYPE_TEXT_PLAIN)) {
-				if (content instanceof String)
-					msgAndAttachments[0] = parsePlainTextMessage((String) content);
-			} else if (msg.isMimeType(MimeTypeUtil.MIME_TYPE_HTML)) {
-				if (content instanceof String)
-					msgAndAttachments[0] = parseHTMLMessage((String) content);
-			} else if (msg.isMimeType(EmailConstants.MULTIPART_MIXED_TYPE)) {
-				msgAndAttachments = parseMultipartMixed((Multipart) content);
-			} else if (msg.isMimeType(EmailConstants.MULTIPART_ALTERNATIVE_TYPE)) {
-				msgAndAttachments = parseMultipartAlternative((MimeMultipart) content);
-			} else if (msg.isMimeType(EmailConstants.MESSAGE_RFC822_TYPE)) {
-				IMAPNestedMessage nestedMessage = (IMAPNestedMessage) msg.getContent();
-				msgAndAttachments = parseRFC822(nestedMessage);
-			} else if (msg.isMimeType(EmailConstants.MULTIPART_RELATED_TYPE)) {
-				msgAndAttachments[0] = parseMultipartRelated((MimeMultipart) msg.getContent());
-			} else if (msg.isMimeType(EmailConstants.MESSAGE_MULTIPART_SIGNED)) {
+			getQuarantine().onParsingSucceeded(message, params);
+		} catch (Exception e) {
+			LOGGER.log(Level.WARNING, "Error removing failures of message " + message, e);
+		}
+	}
+
+	/**
+	 * Applies all {@link EmailBodyTransformer}s to the body, so it is processed once when received
+	 */
+	protected String getTransformedBody(String body, Message message) {
+		for (EmailBodyTransformer transformer: getBodyTransformers()) {
+			try {
+				String transformed = transformer.transform(body, message);
+				if (transformed != null) {
+					body = transformed;
+				}
+			} catch (Exception e) {
+				LOGGER.log(Level.WARNING, "Error transforming body of message " + message + " with " + transformer, e);
+			}
+		}
+		return body;
+	}
+
+	private List<EmailBodyTransformer> getBodyTransformers() {
+		List<EmailBodyTransformer> transformers = bodyTransformers;
+		if (transformers == null) {
+			transformers = new ArrayList<EmailBodyTransformer>();
+			try {
+				Map<String, ? extends EmailBodyTransformer> beans = WebApplicationContextUtils
+					.getWebApplicationContext(IWMainApplication.getDefaultIWMainApplication().getServletContext())
+					.getBeansOfType(EmailBodyTransformer.class);
+				if (beans != null) {
+					transformers.addAll(beans.values());
+				}
+				Collections.sort(transformers, new OrderComparator());
+			} catch (Exception e) {
+				LOGGER.log(Level.WARNING, "Error resolving transformers of e-mails' bodies", e);
+			}
+			bodyTransformers = transformers;
+		}
+		return transformers;
+	}
+
+	/**
+	 * Errors reading the content are thrown, so parsing of the message is registered as failed instead of returning partial content
+	 *
+	 * @return body and attachments of the message or <code>null</code> if there is no parser for its content type
+	 */
+	protected Object[] parseContent(Message msg) throws MessagingException, IOException {
+		StringBuilder body = new StringBuilder();
+		Map<String, InputStream> attachments = new HashMap<String, InputStream>();
+		try {
+			String type = getBaseType(msg);
+			if (EmailConstants.MESSAGE_MULTIPART_SIGNED.equalsIgnoreCase(type)) {
 				LOGGER.warning("Message (subject: " + msg.getSubject() + ", sent: " + msg.getSentDate() + "; type: " + msg.getClass() +	") is signed! Parsing may be incorrect!");
-				msgAndAttachments[0] = getParsedMultipart((Multipart) msg.getContent());
-			} else if (msg.isMimeType(EmailConstants.MESSAGE_MULTIPART_REPORT)) {
-				msgAndAttachments[0] = getParsedMultipart((Multipart) msg.getContent());
-			} else {
+			}
+
+			if (!parsePart(msg, type, body, attachments)) {
 				LOGGER.warning("There is no content parser for MIME type ('" + msg.getContentType() + "') message: " + msg + ", subject: " + msg.getSubject());
+				closeAttachments(attachments);
 				return null;
 			}
 		} catch (MessagingException e) {
-			LOGGER.log(Level.SEVERE, "Exception while resolving content text from email msg", e);
+			closeAttachments(attachments);
+			throw e;
 		} catch (IOException e) {
-			LOGGER.log(Level.SEVERE, "Exception while resolving content text from email msg", e);
-		} catch (Exception e) {
-
+			closeAttachments(attachments);
+			throw e;
+		} catch (RuntimeException e) {
+			closeAttachments(attachments);
+			throw e;
 		}
-		return msgAndAttachments;
+		return new Object[] {body.toString(), attachments};
 	}
 
-	private Object[] getParsedMultipart(Multipart mp) throws MessagingException, IOException {
-		return parseMultipartMixed(mp);
+	/**
+	 * Releases attachments already stored for the message which was not parsed
+	 */
+	protected void closeAttachments(Map<String, InputStream> attachments) {
+		for (InputStream attachment: attachments.values()) {
+			IOUtil.closeInputStream(attachment);
+		}
+		attachments.clear();
 	}
 
-	@SuppressWarnings("unchecked")
-	private Object[] parseMultipartMixed(Multipart messageMultipart) throws MessagingException, IOException {
-		String msg = "";
-		Object[] msgAndAttachements = new Object[2];
-		Map<String, InputStream> attachemntMap = new HashMap<String, InputStream>();
-		msgAndAttachements[1] = attachemntMap;
-		for (int i = 0; i < messageMultipart.getCount(); i++) {
+	/**
+	 * Resolves MIME type of the part once, without parameters and in lower case. For IMAP messages type is taken from prefetched BODYSTRUCTURE.
+	 */
+	protected String getBaseType(Part part) throws MessagingException {
+		String contentType = part.getContentType();
+		if (contentType == null) {
+			return MimeTypeUtil.MIME_TYPE_TEXT_PLAIN;
+		}
 
-			Part messagePart = messageMultipart.getBodyPart(i);
-			String disposition = messagePart.getDisposition();
-			// it is attachment
-			if ((disposition != null) && (!messagePart.isMimeType(EmailConstants.MESSAGE_RFC822_TYPE)) && ((disposition.equalsIgnoreCase(Part.ATTACHMENT) ||
-																											disposition.equalsIgnoreCase(Part.INLINE)))) {
-				//	Copying attachments to memory
-				InputStream input = messagePart.getInputStream();
-				ByteArrayOutputStream memory = new ByteArrayOutputStream();
-				FileUtil.streamToOutputStream(input, memory);
-				InputStream streamFromMemory = new ByteArrayInputStream(memory.toByteArray());
-				IOUtil.closeInputStream(input);
-				IOUtil.closeOutputStream(memory);
-
-				String fileName = messagePart.getFileName();
-				if (fileName != null) {
-					fileName = MimeUtility.decodeText(fileName);
-				} else if (messagePart.getContentType().indexOf("name*=") != -1) {
-					// When attachments send from evolution mail client,
-					// there is errors so we do what we can.
-					fileName = messagePart.getContentType().substring(
-					    messagePart.getContentType().indexOf("name*=") + 6);
-					// maybe we are lucky to decode it, if not, well
-					// better something then nothing.
-					fileName = MimeUtility.decodeText(fileName);
-
-				} else {
-					// well not much can be done then can it?:)
-					fileName = "UnknownFile";
-				}
-				attachemntMap.put(fileName, streamFromMemory);
-				// It's a message body
-			} else if (messagePart.getContent() instanceof String) {
-				if (messagePart.isMimeType(MimeTypeUtil.MIME_TYPE_HTML))
-					msg += parseHTMLMessage((String) messagePart.getContent());
-				else
-					// it's plain text
-					msg += (String) messagePart.getContent();
-
-				// "multipart/Mixed" can have multipart/alternative sub type.
-			} else if (messagePart.getContent() instanceof MimeMultipart && messagePart.isMimeType(EmailConstants.MULTIPART_ALTERNATIVE_TYPE)) {
-				Object[] parsedMsg = parseMultipartMixed((MimeMultipart) messagePart.getContent());
-				msg += parsedMsg[0];
-
-				attachemntMap.putAll((Map<String, InputStream>) parsedMsg[1]);
-			} else if (messagePart.getContent() instanceof MimeMultipart && messagePart.isMimeType(EmailConstants.MULTIPART_RELATED_TYPE)) {
-				msg += parseMultipartRelated((MimeMultipart) messagePart.getContent());
-			} else if (messagePart.isMimeType(EmailConstants.MESSAGE_RFC822_TYPE)) {
-				IMAPNestedMessage nestedMessage = (IMAPNestedMessage) messagePart.getContent();
-
-				Object[] parsedMsg = parseRFC822(nestedMessage);
-
-				msg += parsedMsg[0];
-				attachemntMap.putAll((Map<String, InputStream>) parsedMsg[1]);
-			}
+		try {
+			return new ContentType(contentType).getBaseType().toLowerCase();
+		} catch (ParseException e) {
+			int end = contentType.indexOf(';');
+			return (end == -1 ? contentType : contentType.substring(0, end)).trim().toLowerCase();
 		}
-		msgAndAttachements[0] = msg;
-		return msgAndAttachements;
 	}
 
-	@SuppressWarnings("unchecked")
-	private Object[] parseRFC822(IMAPNestedMessage part) throws MessagingException, IOException {
-		String msg = "";
-
-		Object[] msgAndAttachements = new Object[2];
-		Map<String, InputStream> attachmentMap = new HashMap<String, InputStream>();
-		msgAndAttachements[1] = attachmentMap;
+	/**
+	 * Walks MIME tree of the part. Each part's content is requested once and only for the types that are used, so on IMAP each body part is
+	 * fetched at most once.
+	 *
+	 * @return <code>false</code> if there is no parser for the type of the part
+	 */
+	private boolean parsePart(Part part, String type, StringBuilder body, Map<String, InputStream> attachments) throws MessagingException, IOException {
+		if (part == null) {
+			return false;
+		}
 
-		if (part.isMimeType(MimeTypeUtil.MIME_TYPE_TEXT_PLAIN)) {
-			//	Plain text
-			if (part.getContent() instanceof String)
-				msg += parsePlainTextMessage((String) part.getContent());
-			msgAndAttachements[0] = msg;
-		} else if (part.isMimeType(MimeTypeUtil.MIME_TYPE_HTML)) {
-			//	HTML
-			if (part.getContent() instanceof String)
-				msg += parseHTMLMessage((String) part.getContent());
-			msgAndAttachements[0] = msg;
-		} else if (part.isMimeType(EmailConstants.MULTIPART_MIXED_TYPE)) {
-			//	Multipart mixed
-			msgAndAttachements = parseMultipartMixed((Multipart) part.getContent());
-		} else if (part.isMimeType(EmailConstants.MULTIPART_ALTERNATIVE_TYPE)) {
-			//	Multipart alternative
-			Object[] parsedMsg = parseMultipartMixed((MimeMultipart) part.getContent());
-			msg += parsedMsg[0];
+		if (MimeTypeUtil.MIME_TYPE_TEXT_PLAIN.equalsIgnoreCase(type)) {
+			appendPlainTextMessage(body, MimeTextDecoder.getText(part));
+			return true;
+		}
 
-			attachmentMap.putAll((Map<String, InputStream>) parsedMsg[1]);
+		if (MimeTypeUtil.MIME_TYPE_HTML.equalsIgnoreCase(type)) {
+			body.append(parseHTMLMessage(MimeTextDecoder.getText(part)));
+			return true;
+		}
 
-			//msg += parseMultipartAlternative((MimeMultipart) part.getContent());
-			msgAndAttachements[0] = msg;
-		} else if (part.isMimeType(EmailConstants.MULTIPART_RELATED_TYPE)) {
-			//	Multipart related
-			msg += parseMultipartRelated((MimeMultipart) part.getContent());
-			msgAndAttachements[0] = msg;
-		} else if (part.isMimeType(EmailConstants.MESSAGE_RFC822_TYPE)) {
-			//	RCF822
-			IMAPNestedMessage nestedMessage = (IMAPNestedMessage) part.getContent();
+		if (EmailConstants.MESSAGE_RFC822_TYPE.equalsIgnoreCase(type)) {
+			Part nestedMessage = getNestedMessage(part.getContent());
+			return nestedMessage == null ? true : parsePart(nestedMessage, getBaseType(nestedMessage), body, attachments);
+		}
 
-			Object[] parsedMsg = parseRFC822(nestedMessage);
-			msg += parsedMsg[0];
+		if (type.startsWith("multipart/")) {
+			Object content = part.getContent();
+			if (!(content instanceof Multipart)) {
+				LOGGER.warning("Unexpected content (" + (content == null ? null : content.getClass()) + ") of " + type);
+				return true;
+			}
 
-			attachmentMap.putAll((Map<String, InputStream>) parsedMsg[1]);
+			Multipart multipart = (Multipart) content;
+			if (EmailConstants.MULTIPART_RELATED_TYPE.equalsIgnoreCase(type)) {
+				parseMultipartRelated(multipart, body);
+			} else if (EmailConstants.MULTIPART_ALTERNATIVE_TYPE.equalsIgnoreCase(type)) {
+				parseMultipartAlternative(multipart, body, attachments);
+			} else {
+				//	Mixed, signed, report and other multiparts
+				parseMultipartMixed(multipart, body, attachments);
+			}
+			return true;
 		}
 
-		return msgAndAttachements;
+		return false;
+	}
+
+	private void parseMultipartMixed(Multipart messageMultipart, StringBuilder body, Map<String, InputStream> attachments)
+		throws MessagingException, IOException {
+		for (int i = 0; i < messageMultipart.getCount(); i++) {
+			Part messagePart = messageMultipart.getBodyPart(i);
+			String type = getBaseType(messagePart);
+			if (isAttachment(messagePart, type)) {
+				//	Attachment is stored in memory or in temporary file, depending on its size
+				attachments.put(getAttachmentName(messagePart), getAttachmentSink().store(messagePart.getInputStream()));
+			} else if (!parsePart(messagePart, type, body, attachments)) {
+				//	Part without parser (text/calendar, text/csv, application/pdf without disposition, ...) is kept as attachment
+				attachments.put(getAttachmentName(messagePart), getAttachmentSink().store(messagePart.getInputStream()));
+			}
+		}
 	}
 
-	@SuppressWarnings("unchecked")
-	private Object[] parseMultipartAlternative(MimeMultipart multipart) throws MessagingException, IOException {
-		String msg = "";
+	protected boolean isAttachment(Part part, String type) throws MessagingException {
+		if (EmailConstants.MESSAGE_RFC822_TYPE.equalsIgnoreCase(type)) {
+			return false;
+		}
 
-		Object[] msgAndAttachements = new Object[2];
-		Map<String, InputStream> attachmentMap = new HashMap<String, InputStream>();
-		msgAndAttachements[1] = attachmentMap;
+		String disposition = part.getDisposition();
+		return disposition != null && (disposition.equalsIgnoreCase(Part.ATTACHMENT) || disposition.equalsIgnoreCase(Part.INLINE));
+	}
+
+	/**
+	 * @return file name decoded by {@link MimeTextDecoder#getFileName(Part)} or "UnknownFile" if it is not provided
+	 */
+	protected String getAttachmentName(Part part) throws MessagingException, IOException {
+		String fileName = MimeTextDecoder.getFileName(part);
+		return StringUtil.isEmpty(fileName) ? "UnknownFile" : fileName;
+	}
 
+	/**
+	 * Only the alternative chosen by {@link #getAlternativeRank(String)} is parsed, so content of other alternatives is not fetched at all (on
+	 * IMAP body parts are fetched by section, only when their content is requested)
+	 */
+	private void parseMultipartAlternative(Multipart multipart, StringBuilder body, Map<String, InputStream> attachments)
+		throws MessagingException, IOException {
+		Part selectedPart = null;
+		String selectedType = null;
+		int selectedRank = 0;
 		for (int i = 0; i < multipart.getCount(); i++) {
 			Part part = multipart.getBodyPart(i);
-			if (part.isMimeType(MimeTypeUtil.MIME_TYPE_HTML)) {
-				msg += parseHTMLMessage((String) part.getContent());
-				msgAndAttachements[0] = msg;
-			} else if (part.isMimeType(MimeTypeUtil.MIME_TYPE_TEXT_PLAIN)) {
-				msg += parsePlainTextMessage((String) part.getContent());
-				msgAndAttachements[0] = msg;
-			} else if (part.getContent() instanceof MimeMultipart && part.isMimeType(EmailConstants.MULTIPART_MIXED_TYPE)) {
-				Object[] parsedMsg = parseMultipartMixed((MimeMultipart) part.getContent());
-				msg += parsedMsg[0];
-
-				attachmentMap.putAll((Map<String, InputStream>) parsedMsg[1]);
+			String type = getBaseType(part);
+			int rank = getAlternativeRank(type);
+			//	Alternatives are ordered by increasing faithfulness to the original, so the last one wins on equal rank
+			if (rank > 0 && rank >= selectedRank) {
+				selectedPart = part;
+				selectedType = type;
+				selectedRank = rank;
 			}
 		}
 
-		return msgAndAttachements;
+		if (selectedPart != null) {
+			parsePart(selectedPart, selectedType, body, attachments);
+		}
 	}
 
-	private String parseMultipartRelated(MimeMultipart multipart) throws MessagingException, IOException {
-		String content = null;
-		StringBuffer allContent = new StringBuffer();
+	/**
+	 * Part selection policy for multipart/alternative: HTML (also inside multipart/related or multipart/mixed) is preferred to plain text
+	 *
+	 * @return rank of the alternative of given type, the highest ranked alternative is parsed; 0 - alternative can not be used
+	 */
+	protected int getAlternativeRank(String type) {
+		if (MimeTypeUtil.MIME_TYPE_HTML.equalsIgnoreCase(type) || EmailConstants.MULTIPART_RELATED_TYPE.equalsIgnoreCase(type)) {
+			return 3;
+		}
+		if (EmailConstants.MULTIPART_MIXED_TYPE.equalsIgnoreCase(type) || EmailConstants.MULTIPART_ALTERNATIVE_TYPE.equalsIgnoreCase(type)) {
+			return 2;
+		}
+		if (MimeTypeUtil.MIME_TYPE_TEXT_PLAIN.equalsIgnoreCase(type)) {
+			return 1;
+		}
+		return 0;
+	}
+
+	/**
+	 * Appends the first HTML part found in multipart/related, replacing content appended by this method before it was found
+	 *
+	 * @return <code>true</code> if HTML part was found
+	 */
+	private boolean parseMultipartRelated(Multipart multipart, StringBuilder body) throws MessagingException, IOException {
+		int start = body.length();
 
 		for (int i = 0; i < multipart.getCount(); i++) {
 			BodyPart part = multipart.getBodyPart(i);
-			if (part.isMimeType(MimeTypeUtil.MIME_TYPE_HTML)) {
-				content = parseHTMLMessage((String) part.getContent());
-				if (content != null) {
-					return content;
+			String type = getBaseType(part);
+			if (MimeTypeUtil.MIME_TYPE_HTML.equalsIgnoreCase(type)) {
+				body.setLength(start);
+				body.append(parseHTMLMessage(MimeTextDecoder.getText(part)));
+				return true;
+			} else if (type.startsWith("multipart/")) {
+				Object content = part.getContent();
+				if (content instanceof Multipart) {
+					parseMultipartRelated((Multipart) content, body);
 				}
-			/*} else if (part.isMimeType(MimeTypeUtil.MIME_TYPE_TEXT_PLAIN)) {
-				content = parsePlainTextMessage((String) part.getContent());
-				if (content != null) {
-					return content;
-				}*/
 			} else {
-				Object contentObject = part.getContent();
-				if (contentObject instanceof MimeMultipart) {
-					String partContent = parseMultipartRelated((MimeMultipart) contentObject);
-					if (partContent != null) {
-						allContent.append(partContent);
-					}
-				} else {
-					LOGGER.warning("Unhandled content: " + multipart.getContentType());
-				}
+				//	Images and other resources of HTML are not downloaded
+				LOGGER.fine("Skipping related content: " + type);
 			}
 		}
 
-		return content == null ? allContent.toString() : content;
+		return false;
 	}
 
-	private String parseHTMLMessage(String message) {
+	protected String parseHTMLMessage(String message) {
 		return message;// "<[!CDATA ["+ message+"]]>";
 	}
 
-	private String parsePlainTextMessage(String message) {
-		String msgWithEscapedHTMLChars = StringUtil.escapeHTMLSpecialChars(message);
-		// replacing all new line characktes to <br/> so it will
-		// be displayed in html as it should
-		return msgWithEscapedHTMLChars.replaceAll("\n", "<br/>");
+	/**
+	 * Escapes HTML special characters and replaces new lines with <code>&lt;br/&gt;</code> so text is displayed in HTML as it should, in one pass
+	 */
+	protected void appendPlainTextMessage(StringBuilder body, String message) {
+		if (message == null) {
+			return;
+		}
+
+		body.ensureCapacity(body.length() + message.length() + message.length() / 16);
+		for (int i = 0; i < message.length(); i++) {
+			char c = message.charAt(i);
+			switch (c) {
+				case '&':
+					body.append("&amp;");
+					break;
+				case '<':
+					body.append("&lt;");
+					break;
+				case '>':
+					body.append("&gt;");
+					break;
+				case '"':
+					body.append("&quot;");
+					break;
+				case '\n':
+					body.append("<br/>");
+					break;
+				default:
+					body.append(c);
+			}
+		}
+	}
+
+	protected AttachmentSink getAttachmentSink() {
+		return attachmentSink;
 	}
 
 	public EmailSubjectPatternFinder getEmailsFinder() {
@@ -471,6 +740,28 @@ public abstract class DefaultMessageParser implements EmailParser {
 		this.emailsFinder = emailsFinder;
 	}
 
+	public EmailQuarantine getQuarantine() {
+		if (quarantine == null) {
+			ELUtil.getInstance().autowire(this);
+		}
+		return quarantine;
+	}
+
+	public void setQuarantine(EmailQuarantine quarantine) {
+		this.quarantine = quarantine;
+	}
+
+	public ProcessedMessagesRegistry getProcessedMessagesRegistry() {
+		if (processedMessagesRegistry == null) {
+			ELUtil.getInstance().autowire(this);
+		}
+		return processedMessagesRegistry;
+	}
+
+	public void setProcessedMessagesRegistry(ProcessedMessagesRegistry processedMessagesRegistry) {
+		this.processedMessagesRegistry = processedMessagesRegistry;
+	}
+
 	@Override
 	public Collection<? extends EmailMessage> getParsedMessages(ApplicationEmailEvent emailEvent) {
 		LOGGER.warning("This method is not implemented!");
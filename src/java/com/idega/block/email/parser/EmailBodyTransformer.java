@@ -0,0 +1,18 @@
+package com.idega.block.email.parser;
+
+import javax.mail.Message;
+
+/**
+ * Transforms body of parsed e-mail: sanitizes HTML, strips quoted replies, normalizes markup etc. All Spring beans implementing this interface are
+ * applied by {@link DefaultMessageParser} once per message, in the order defined by {@link org.springframework.core.Ordered} (if implemented).
+ */
+public interface EmailBodyTransformer {
+
+	/**
+	 * @param body parsed body (HTML)
+	 * @param message original message
+	 * @return transformed body
+	 */
+	public String transform(String body, Message message);
+
+}
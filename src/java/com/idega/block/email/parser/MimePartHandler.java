@@ -0,0 +1,31 @@
+package com.idega.block.email.parser;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+
+import javax.mail.MessagingException;
+import javax.mail.Part;
+
+/**
+ * Receives parts of e-mail from {@link StreamingEmailParser} one by one, as they are found in the raw message. Streams are valid only during the
+ * call.
+ */
+public interface MimePartHandler {
+
+	/**
+	 * Called for the text part chosen to be a body (or a part of it)
+	 *
+	 * @param type MIME type without parameters, in lower case: text/plain or text/html
+	 * @param content decoded text of the part
+	 */
+	public void onText(Part part, String type, Reader content) throws IOException, MessagingException;
+
+	/**
+	 * Called for each attachment
+	 *
+	 * @param content decoded content of the attachment
+	 */
+	public void onAttachment(Part part, String fileName, InputStream content) throws IOException, MessagingException;
+
+}
@@ -0,0 +1,384 @@
+package com.idega.block.email.parser;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.mail.MessagingException;
+import javax.mail.Part;
+import javax.mail.internet.MimeUtility;
+
+import com.idega.idegaweb.IWMainApplication;
+import com.idega.util.IOUtil;
+
+/**
+ * Decodes text of e-mail parts and encoded parameters (RFC 2231 <code>filename*=utf-8''%C3%BE</code>, continuations <code>filename*0*=</code>,
+ * RFC 2047 encoded words <code>=?utf-8?B?...?=</code>). Declared charset is used when it is known. Text without charset (or declared as
+ * US-ASCII, but having 8 bit characters) is decoded as UTF-8 if it is valid UTF-8, otherwise using the fallback charset. Charset decoders are
+ * cached per thread.
+ */
+public class MimeTextDecoder {
+
+	private static final Logger LOGGER = Logger.getLogger(MimeTextDecoder.class.getName());
+
+	public static final String PROP_FALLBACK_CHARSET = "email_fallback_charset";
+
+	private static final String DEFAULT_FALLBACK_CHARSET = "windows-1252", UTF_8 = "UTF-8", US_ASCII = "us-ascii";
+
+	private static final Pattern ENCODED_WORD = Pattern.compile("=\\?([^?\\s]+)\\?([bBqQ])\\?([^?\\s]*)\\?=");
+	private static final Pattern WHITESPACE_BETWEEN_WORDS = Pattern.compile("(\\?=)\\s+(=\\?)");
+	private static final Pattern UNSAFE_FILE_NAME_CHARACTERS = Pattern.compile("[\\\\/:*?\"<>|\\p{Cntrl}]");
+
+	private static final ThreadLocal<Map<String, CharsetDecoder>> DECODERS = new ThreadLocal<Map<String, CharsetDecoder>>() {
+		@Override
+		protected Map<String, CharsetDecoder> initialValue() {
+			return new HashMap<String, CharsetDecoder>();
+		}
+	};
+
+	private MimeTextDecoder() {}
+
+	/**
+	 * @return decoded text of the part
+	 */
+	public static String getText(Part part) throws MessagingException, IOException {
+		InputStream input = part.getInputStream();
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(Math.max(part.getSize(), 32));
+		try {
+			byte[] buffer = new byte[8192];
+			int read = -1;
+			while ((read = input.read(buffer)) != -1) {
+				bytes.write(buffer, 0, read);
+			}
+		} finally {
+			IOUtil.closeInputStream(input);
+		}
+		return decode(bytes.toByteArray(), getCharset(part));
+	}
+
+	public static String getCharset(Part part) throws MessagingException {
+		return getParameters(part.getContentType()).get("charset");
+	}
+
+	public static String decode(byte[] bytes, String charset) {
+		if (charset != null && !US_ASCII.equalsIgnoreCase(charset)) {
+			CharsetDecoder decoder = getDecoder(charset, false);
+			if (decoder != null) {
+				return decode(decoder, bytes);
+			}
+			LOGGER.warning("Unsupported charset '" + charset + "'");
+		}
+
+		//	Charset is unknown
+		try {
+			return getDecoder(UTF_8, true).decode(ByteBuffer.wrap(bytes)).toString();
+		} catch (CharacterCodingException e) {}
+		return decode(getDecoder(null), bytes);
+	}
+
+	private static String decode(CharsetDecoder decoder, byte[] bytes) {
+		try {
+			return decoder.decode(ByteBuffer.wrap(bytes)).toString();
+		} catch (CharacterCodingException e) {
+			//	Not thrown when malformed input is replaced
+			return new String(bytes, decoder.charset());
+		}
+	}
+
+	/**
+	 * @return decoder (cached for current thread) replacing malformed input, for unknown charset - decoder of the fallback charset
+	 */
+	public static CharsetDecoder getDecoder(String charset) {
+		CharsetDecoder decoder = charset == null || US_ASCII.equalsIgnoreCase(charset) ? null : getDecoder(charset, false);
+		if (decoder == null) {
+			decoder = getDecoder(getFallbackCharset(), false);
+		}
+		return decoder == null ? getDecoder(UTF_8, false) : decoder;
+	}
+
+	private static CharsetDecoder getDecoder(String charset, boolean strict) {
+		String key = (strict ? "strict:" : "") + charset.toLowerCase();
+		Map<String, CharsetDecoder> decoders = DECODERS.get();
+		CharsetDecoder decoder = decoders.get(key);
+		if (decoder == null) {
+			//	Only supported charsets are cached, so names from messages do not grow the cache without bound
+			try {
+				CodingErrorAction action = strict ? CodingErrorAction.REPORT : CodingErrorAction.REPLACE;
+				decoder = Charset.forName(MimeUtility.javaCharset(charset)).newDecoder().onMalformedInput(action).onUnmappableCharacter(action);
+			} catch (Exception e) {
+				return null;
+			}
+			decoders.put(key, decoder);
+		}
+		return decoder == null ? null : decoder.reset();
+	}
+
+	private static String getFallbackCharset() {
+		try {
+			return IWMainApplication.getDefaultIWMainApplication().getSettings().getProperty(PROP_FALLBACK_CHARSET, DEFAULT_FALLBACK_CHARSET);
+		} catch (Exception e) {
+			return DEFAULT_FALLBACK_CHARSET;
+		}
+	}
+
+	/**
+	 * Resolves file name from Content-Disposition (<code>filename</code>) or Content-Type (<code>name</code>) header. Characters which are not
+	 * allowed in file names are replaced.
+	 *
+	 * @return decoded file name or <code>null</code> if it is not provided
+	 */
+	public static String getFileName(Part part) throws MessagingException {
+		String fileName = null;
+		String[] disposition = part.getHeader("Content-Disposition");
+		if (disposition != null && disposition.length > 0) {
+			fileName = getParameter(disposition[0], "filename");
+		}
+		if (fileName == null) {
+			fileName = getParameter(part.getContentType(), "name");
+		}
+		if (fileName == null) {
+			return null;
+		}
+
+		fileName = UNSAFE_FILE_NAME_CHARACTERS.matcher(fileName).replaceAll("_").trim();
+		return fileName.length() == 0 ? null : fileName;
+	}
+
+	/**
+	 * @return decoded value of the parameter of header, RFC 2231 and RFC 2047 encodings are supported
+	 */
+	public static String getParameter(String header, String name) {
+		Map<String, String> parameters = getParameters(header);
+		if (parameters.isEmpty()) {
+			return null;
+		}
+
+		name = name.toLowerCase();
+
+		//	RFC 2231: name*=charset'language'encoded
+		String value = parameters.get(name + "*");
+		if (value != null) {
+			return decodeExtendedValue(value, null, true);
+		}
+
+		//	RFC 2231 continuations: name*0*=charset'language'encoded, name*1*=encoded, name*2=plain
+		if (parameters.containsKey(name + "*0") || parameters.containsKey(name + "*0*")) {
+			TreeMap<Integer, String[]> segments = new TreeMap<Integer, String[]>();
+			String prefix = name + "*";
+			for (Map.Entry<String, String> parameter: parameters.entrySet()) {
+				String key = parameter.getKey();
+				if (!key.startsWith(prefix) || key.length() == prefix.length()) {
+					continue;
+				}
+				boolean encoded = key.endsWith("*");
+				try {
+					int index = Integer.valueOf(key.substring(prefix.length(), encoded ? key.length() - 1 : key.length()));
+					segments.put(index, new String[] {parameter.getValue(), String.valueOf(encoded)});
+				} catch (NumberFormatException e) {}
+			}
+
+			StringBuilder decoded = new StringBuilder();
+			String charset = null;
+			for (Map.Entry<Integer, String[]> segment: segments.entrySet()) {
+				String segmentValue = segment.getValue()[0];
+				if (!Boolean.valueOf(segment.getValue()[1])) {
+					decoded.append(segmentValue);
+					continue;
+				}
+
+				if (segment.getKey() == 0) {
+					int first = segmentValue.indexOf('\''), second = first == -1 ? -1 : segmentValue.indexOf('\'', first + 1);
+					if (second != -1) {
+						charset = segmentValue.substring(0, first);
+						segmentValue = segmentValue.substring(second + 1);
+					}
+				}
+				decoded.append(decodeExtendedValue(segmentValue, charset, false));
+			}
+			return decoded.toString();
+		}
+
+		value = parameters.get(name);
+		return value == null ? null : decodeText(value);
+	}
+
+	private static String decodeExtendedValue(String value, String charset, boolean hasCharset) {
+		if (hasCharset) {
+			int first = value.indexOf('\''), second = first == -1 ? -1 : value.indexOf('\'', first + 1);
+			if (second == -1) {
+				return value;
+			}
+			charset = value.substring(0, first);
+			value = value.substring(second + 1);
+		}
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(value.length());
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '%' && i + 2 < value.length() && isHex(value.charAt(i + 1)) && isHex(value.charAt(i + 2))) {
+				bytes.write(Integer.parseInt(value.substring(i + 1, i + 3), 16));
+				i += 2;
+			} else {
+				bytes.write(c);
+			}
+		}
+		return decode(bytes.toByteArray(), charset == null || charset.length() == 0 ? null : charset);
+	}
+
+	/**
+	 * Decodes RFC 2047 encoded words, whitespace between adjacent encoded words is ignored
+	 */
+	public static String decodeText(String text) {
+		if (text == null || text.indexOf("=?") == -1) {
+			return text;
+		}
+
+		text = WHITESPACE_BETWEEN_WORDS.matcher(text).replaceAll("$1$2");
+		Matcher matcher = ENCODED_WORD.matcher(text);
+		StringBuilder decoded = new StringBuilder(text.length());
+		int end = 0;
+		while (matcher.find()) {
+			decoded.append(text, end, matcher.start());
+			String charset = matcher.group(1);
+			int language = charset.indexOf('*');
+			if (language != -1) {
+				charset = charset.substring(0, language);
+			}
+
+			byte[] bytes = "B".equalsIgnoreCase(matcher.group(2)) ? decodeBase64(matcher.group(3)) : decodeQ(matcher.group(3));
+			if (bytes == null) {
+				decoded.append(matcher.group());
+			} else {
+				decoded.append(decode(bytes, charset));
+			}
+			end = matcher.end();
+		}
+		decoded.append(text, end, text.length());
+		return decoded.toString();
+	}
+
+	private static byte[] decodeQ(String text) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(text.length());
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			if (c == '_') {
+				bytes.write(' ');
+			} else if (c == '=' && i + 2 < text.length() && isHex(text.charAt(i + 1)) && isHex(text.charAt(i + 2))) {
+				bytes.write(Integer.parseInt(text.substring(i + 1, i + 3), 16));
+				i += 2;
+			} else {
+				bytes.write(c);
+			}
+		}
+		return bytes.toByteArray();
+	}
+
+	private static byte[] decodeBase64(String text) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(text.length() * 3 / 4);
+		int buffer = 0, bits = 0;
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			int value = -1;
+			if (c >= 'A' && c <= 'Z') {
+				value = c - 'A';
+			} else if (c >= 'a' && c <= 'z') {
+				value = c - 'a' + 26;
+			} else if (c >= '0' && c <= '9') {
+				value = c - '0' + 52;
+			} else if (c == '+') {
+				value = 62;
+			} else if (c == '/') {
+				value = 63;
+			} else if (c == '=') {
+				break;
+			} else {
+				return null;
+			}
+
+			buffer = (buffer << 6) | value;
+			bits += 6;
+			if (bits >= 8) {
+				bits -= 8;
+				bytes.write((buffer >> bits) & 0xff);
+			}
+		}
+		return bytes.toByteArray();
+	}
+
+	private static boolean isHex(char c) {
+		return (c >= '0' && c <= '9') || (c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F');
+	}
+
+	/**
+	 * Parses parameters of header (<code>type; name=value; name="quoted value"</code>) without decoding them
+	 *
+	 * @return parameters by lower case names
+	 */
+	public static Map<String, String> getParameters(String header) {
+		Map<String, String> parameters = new HashMap<String, String>();
+		if (header == null) {
+			return parameters;
+		}
+
+		//	Unfolding
+		header = header.replace("\r", "").replace("\n", "");
+
+		int length = header.length();
+		int i = header.indexOf(';');
+		while (i != -1 && i < length) {
+			i++;
+			while (i < length && Character.isWhitespace(header.charAt(i))) {
+				i++;
+			}
+
+			int nameStart = i;
+			while (i < length && header.charAt(i) != '=' && header.charAt(i) != ';') {
+				i++;
+			}
+			String name = header.substring(nameStart, i).trim().toLowerCase();
+			if (i >= length || header.charAt(i) == ';') {
+				continue;
+			}
+
+			i++;
+			while (i < length && Character.isWhitespace(header.charAt(i))) {
+				i++;
+			}
+
+			StringBuilder value = new StringBuilder();
+			if (i < length && header.charAt(i) == '"') {
+				i++;
+				while (i < length && header.charAt(i) != '"') {
+					char c = header.charAt(i);
+					if (c == '\\' && i + 1 < length) {
+						c = header.charAt(++i);
+					}
+					value.append(c);
+					i++;
+				}
+				i = header.indexOf(';', i);
+			} else {
+				int valueEnd = header.indexOf(';', i);
+				value.append(header.substring(i, valueEnd == -1 ? length : valueEnd).trim());
+				i = valueEnd;
+			}
+
+			if (name.length() > 0) {
+				parameters.put(name, value.toString());
+			}
+		}
+		return parameters;
+	}
+
+}
@@ -0,0 +1,237 @@
+package com.idega.block.email.parser;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Multipart;
+import javax.mail.Part;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+import javax.mail.util.SharedFileInputStream;
+
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.config.BeanDefinition;
+import org.springframework.context.annotation.Scope;
+import org.springframework.stereotype.Service;
+
+import com.idega.block.email.EmailConstants;
+import com.idega.block.email.bean.MessageParserType;
+import com.idega.core.file.util.MimeTypeUtil;
+import com.idega.idegaweb.IWMainApplication;
+import com.idega.util.IOUtil;
+
+/**
+ * Parser for very big e-mails. Raw message is written to temporary file and parsed from it: parts of the message are only ranges of the file,
+ * body text is read in chunks and attachments are streamed to {@link AttachmentSink}, so the whole message is never kept in memory. Parts are
+ * passed to {@link MimePartHandler}. Messages smaller than the threshold are parsed in memory, like {@link EmailParserImpl} does.
+ */
+@Service
+@Scope(BeanDefinition.SCOPE_SINGLETON)
+@Qualifier("streamingEmailsParser")
+public class StreamingEmailParser extends DefaultMessageParser implements EmailParser {
+
+	private static final Logger LOGGER = Logger.getLogger(StreamingEmailParser.class.getName());
+
+	public static final String PROP_THRESHOLD = "email_streaming_parser_threshold";
+
+	private static final int DEFAULT_THRESHOLD = 5 * 1024 * 1024, BUFFER_SIZE = 8192;
+
+	public MessageParserType getMessageParserType() {
+		return MessageParserType.MAILING_LIST;
+	}
+
+	@Override
+	protected Object[] parseContent(Message msg) throws MessagingException, IOException {
+		int size = -1;
+		try {
+			size = msg.getSize();
+		} catch (MessagingException e) {}
+		if (size >= 0 && size < getThreshold()) {
+			return super.parseContent(msg);
+		}
+
+		final StringBuilder body = new StringBuilder();
+		final Map<String, InputStream> attachments = new HashMap<String, InputStream>();
+		File file = null;
+		SharedFileInputStream input = null;
+		try {
+			file = File.createTempFile("email_message", ".eml");
+			OutputStream output = new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE);
+			try {
+				msg.writeTo(output);
+			} finally {
+				IOUtil.closeOutputStream(output);
+			}
+
+			input = new SharedFileInputStream(file);
+			MimeMessage rawMessage = new MimeMessage(Session.getInstance(new Properties()), input);
+			boolean parsed = parse(rawMessage, new MimePartHandler() {
+				@Override
+				public void onText(Part part, String type, Reader content) throws IOException {
+					char[] buffer = new char[BUFFER_SIZE];
+					int read = -1;
+					while ((read = content.read(buffer)) != -1) {
+						if (MimeTypeUtil.MIME_TYPE_HTML.equalsIgnoreCase(type)) {
+							body.append(buffer, 0, read);
+						} else {
+							appendPlainTextMessage(body, new String(buffer, 0, read));
+						}
+					}
+				}
+
+				@Override
+				public void onAttachment(Part part, String fileName, InputStream content) throws IOException {
+					attachments.put(fileName, getAttachmentSink().store(content));
+				}
+			});
+			if (!parsed) {
+				LOGGER.warning("There is no content parser for MIME type ('" + msg.getContentType() + "') message: " + msg + ", subject: " +
+						msg.getSubject());
+				closeAttachments(attachments);
+				return null;
+			}
+		} catch (MessagingException e) {
+			LOGGER.log(Level.WARNING, "Error parsing message " + msg + " from stream", e);
+			closeAttachments(attachments);
+			throw e;
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "Error parsing message " + msg + " from stream", e);
+			closeAttachments(attachments);
+			throw e;
+		} catch (RuntimeException e) {
+			LOGGER.log(Level.WARNING, "Error parsing message " + msg + " from stream", e);
+			closeAttachments(attachments);
+			throw e;
+		} finally {
+			if (input != null) {
+				try {
+					input.close();
+				} catch (IOException e) {}
+			}
+			if (file != null && !file.delete()) {
+				file.deleteOnExit();
+			}
+		}
+
+		return new Object[] {body.toString(), attachments};
+	}
+
+	/**
+	 * Walks MIME tree of the part and passes chosen body parts and attachments to the handler. The same selection rules as in
+	 * {@link DefaultMessageParser} are applied: one alternative of multipart/alternative, only HTML of multipart/related
+	 *
+	 * @return <code>false</code> if there is no parser for the type of the part
+	 */
+	public boolean parse(Part part, MimePartHandler handler) throws MessagingException, IOException {
+		return part == null ? false : parse(part, getBaseType(part), handler);
+	}
+
+	private boolean parse(Part part, String type, MimePartHandler handler) throws MessagingException, IOException {
+		if (MimeTypeUtil.MIME_TYPE_TEXT_PLAIN.equalsIgnoreCase(type) || MimeTypeUtil.MIME_TYPE_HTML.equalsIgnoreCase(type)) {
+			Reader reader = getReader(part);
+			try {
+				handler.onText(part, type, reader);
+			} finally {
+				try {
+					reader.close();
+				} catch (IOException e) {}
+			}
+			return true;
+		}
+
+		if (EmailConstants.MESSAGE_RFC822_TYPE.equalsIgnoreCase(type)) {
+			//	Nested message is parsed from the same file
+			Object content = part.getContent();
+			if (content instanceof Part) {
+				parse((Part) content, handler);
+			}
+			return true;
+		}
+
+		if (!type.startsWith("multipart/")) {
+			return false;
+		}
+
+		Object content = part.getContent();
+		if (!(content instanceof Multipart)) {
+			LOGGER.warning("Unexpected content (" + (content == null ? null : content.getClass()) + ") of " + type);
+			return true;
+		}
+
+		Multipart multipart = (Multipart) content;
+		if (EmailConstants.MULTIPART_ALTERNATIVE_TYPE.equalsIgnoreCase(type)) {
+			Part selectedPart = null;
+			String selectedType = null;
+			int selectedRank = 0;
+			for (int i = 0; i < multipart.getCount(); i++) {
+				Part alternative = multipart.getBodyPart(i);
+				String alternativeType = getBaseType(alternative);
+				int rank = getAlternativeRank(alternativeType);
+				if (rank > 0 && rank >= selectedRank) {
+					selectedPart = alternative;
+					selectedType = alternativeType;
+					selectedRank = rank;
+				}
+			}
+			if (selectedPart != null) {
+				parse(selectedPart, selectedType, handler);
+			}
+
+		} else if (EmailConstants.MULTIPART_RELATED_TYPE.equalsIgnoreCase(type)) {
+			for (int i = 0; i < multipart.getCount(); i++) {
+				Part related = multipart.getBodyPart(i);
+				if (MimeTypeUtil.MIME_TYPE_HTML.equalsIgnoreCase(getBaseType(related))) {
+					return parse(related, MimeTypeUtil.MIME_TYPE_HTML, handler);
+				}
+			}
+			for (int i = 0; i < multipart.getCount(); i++) {
+				Part related = multipart.getBodyPart(i);
+				String relatedType = getBaseType(related);
+				if (relatedType.startsWith("multipart/")) {
+					parse(related, relatedType, handler);
+				}
+			}
+
+		} else {
+			for (int i = 0; i < multipart.getCount(); i++) {
+				Part child = multipart.getBodyPart(i);
+				String childType = getBaseType(child);
+				if (isAttachment(child, childType) || !parse(child, childType, handler)) {
+					handler.onAttachment(child, getAttachmentName(child), child.getInputStream());
+				}
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * @return reader using decoder of the declared charset (cached for current thread) or of the fallback charset if it is unknown
+	 */
+	private Reader getReader(Part part) throws MessagingException, IOException {
+		return new InputStreamReader(part.getInputStream(), MimeTextDecoder.getDecoder(MimeTextDecoder.getCharset(part)));
+	}
+
+	private int getThreshold() {
+		try {
+			return Integer.valueOf(IWMainApplication.getDefaultIWMainApplication().getSettings().getProperty(PROP_THRESHOLD,
+					String.valueOf(DEFAULT_THRESHOLD)));
+		} catch (Exception e) {
+			return DEFAULT_THRESHOLD;
+		}
+	}
+
+}
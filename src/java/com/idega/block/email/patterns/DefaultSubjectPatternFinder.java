@@ -5,9 +5,10 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.logging.Logger;
-import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import javax.mail.FetchProfile;
+import javax.mail.Folder;
 import javax.mail.Message;
 import javax.mail.MessagingException;
 import javax.mail.search.SearchTerm;
@@ -24,6 +25,8 @@ public abstract class DefaultSubjectPatternFinder extends DefaultSpringBean impl
 
 	private List<Pattern> patterns = new ArrayList<Pattern>();
 
+	private transient volatile SubjectPatternMatcher subjectMatcher;
+
 	/**
 	 * Returns all messages with right pattern. Be careful - changes messages status in mail server
 	 */
@@ -34,32 +37,63 @@ public abstract class DefaultSubjectPatternFinder extends DefaultSpringBean impl
 			return new Message[] {};
 		}
 
-		Message[] messages = params.getFolder().search(
-			new SearchTerm() {
-				private static final long serialVersionUID = 5298994639594655420L;
-
-				@Override
-				public boolean match(Message message) {
-					try {
-						String subject = message.getSubject();
-						if (subject == null) {
-							return false;
-						}
-
-						for (Pattern pattern: patterns) {
-							Matcher matcher = pattern.matcher(subject);
-							if (matcher.find()) {
-								return true;
-							}
-						}
-					} catch (MessagingException e) {
-						e.printStackTrace();
+		SearchTerm subjectTerm = new SearchTerm() {
+			private static final long serialVersionUID = 5298994639594655420L;
+
+			@Override
+			public boolean match(Message message) {
+				try {
+					return getSubjectMatch(message.getSubject()) != null;
+				} catch (MessagingException e) {
+					e.printStackTrace();
+				}
+				return false;
+			}
+		};
+
+		Folder folder = params.getFolder();
+		Message[] candidates = params.getMessagesToScan();
+		SearchTerm serverSideSearchTerm = getServerSideSearchTerm();
+
+		if (params.isMessagesToScanPrefetched()) {
+			//	Envelopes are fetched already, matching in memory
+			List<Message> messages = new ArrayList<Message>();
+			if (candidates != null) {
+				for (Message candidate: candidates) {
+					if ((serverSideSearchTerm == null || serverSideSearchTerm.match(candidate)) && subjectTerm.match(candidate)) {
+						messages.add(candidate);
 					}
-					return false;
 				}
-		});
+			}
+			return ListUtil.isEmpty(messages) ? new Message[] {} : ArrayUtil.convertListToArray(messages);
+		}
 
-		return messages;
+		//	Narrowing messages on the mail server, patterns are applied only to the remaining ones
+		if (serverSideSearchTerm != null) {
+			candidates = candidates == null ? folder.search(serverSideSearchTerm) : folder.search(serverSideSearchTerm, candidates);
+			if (ArrayUtil.isEmpty(candidates)) {
+				return new Message[] {};
+			}
+		}
+
+		if (candidates == null) {
+			return folder.search(subjectTerm);
+		}
+
+		FetchProfile envelope = new FetchProfile();
+		envelope.add(FetchProfile.Item.ENVELOPE);
+		folder.fetch(candidates, envelope);
+		return folder.search(subjectTerm, candidates);
+	}
+
+	/**
+	 * Override to provide a search term which can be executed by the mail server (e.g. {@link javax.mail.search.SubjectTerm}) and narrows messages before
+	 * patterns are matched. Term must match every message the patterns can match
+	 *
+	 * @return search term or <code>null</code> if all messages must be matched against the patterns
+	 */
+	public SearchTerm getServerSideSearchTerm() {
+		return null;
 	}
 
 	protected Map<String, FoundMessagesInfo> getCaseIdentifierSearchResultsFormatted(EmailParams params) throws MessagingException {
@@ -71,23 +105,16 @@ public abstract class DefaultSubjectPatternFinder extends DefaultSpringBean impl
 		}
 
 		for (Message message: messages) {
-			Matcher matcher = null;
-			for (Pattern pattern: patterns) {
-				try {
-					matcher = pattern.matcher(message.getSubject());
-					if (!matcher.find()) {
-						matcher = null;
-					}
-				} catch (Exception e) {
-					matcher = null;
-				}
-			}
+			SubjectPatternMatcher.Match match = null;
+			try {
+				match = getSubjectMatch(message.getSubject());
+			} catch (Exception e) {}
 
-			if (matcher == null) {
+			if (match == null) {
 				continue;
 			}
 
-			String identifier = message.getSubject().substring(matcher.start(), matcher.end());
+			String identifier = match.getMatchedText();
 			identifier = getFixedIdentifier(identifier);
 			if (messagesMap.get(identifier) == null) {
 				FoundMessagesInfo messagesInfo = new FoundMessagesInfo(getParserType());
@@ -104,7 +131,26 @@ public abstract class DefaultSubjectPatternFinder extends DefaultSpringBean impl
 	public void addPattern(Pattern pattern) {
 		if (!patterns.contains(pattern)) {
 			patterns.add(pattern);
+			subjectMatcher = null;
+		}
+	}
+
+	/**
+	 * Matches subject against all the patterns in one pass
+	 *
+	 * @return the leftmost match of any of the patterns or <code>null</code> if subject does not match
+	 */
+	public SubjectPatternMatcher.Match getSubjectMatch(String subject) {
+		if (subject == null) {
+			return null;
+		}
+
+		SubjectPatternMatcher matcher = subjectMatcher;
+		if (matcher == null) {
+			matcher = new SubjectPatternMatcher(patterns);
+			subjectMatcher = matcher;
 		}
+		return matcher.find(subject);
 	}
 
 	public List<Pattern> getPatterns() {
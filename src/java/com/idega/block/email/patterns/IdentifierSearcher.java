@@ -1,9 +1,14 @@
 package com.idega.block.email.patterns;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.regex.Pattern;
 
 import javax.mail.MessagingException;
+import javax.mail.search.OrTerm;
+import javax.mail.search.SearchTerm;
+import javax.mail.search.SubjectTerm;
 
 import org.springframework.beans.factory.config.BeanDefinition;
 import org.springframework.context.annotation.Scope;
@@ -12,6 +17,8 @@ import org.springframework.stereotype.Service;
 import com.idega.block.email.bean.FoundMessagesInfo;
 import com.idega.block.email.bean.MessageParserType;
 import com.idega.block.email.client.business.EmailParams;
+import com.idega.util.CoreConstants;
+import com.idega.util.ListUtil;
 import com.idega.util.StringUtil;
 
 @Service
@@ -37,6 +44,31 @@ public class IdentifierSearcher extends DefaultSubjectPatternFinder {
 		return super.getCaseIdentifierSearchResultsFormatted(params);
 	}
 
+	/**
+	 * Prefixes of case identifiers can be listed in "bpm.email_identifier_prefixes" (e.g. "P,BPM") to let mail server find candidates
+	 */
+	@Override
+	public SearchTerm getServerSideSearchTerm() {
+		String prefixes = getApplication().getSettings().getProperty("bpm.email_identifier_prefixes");
+		if (StringUtil.isEmpty(prefixes)) {
+			return null;
+		}
+
+		List<SearchTerm> terms = new ArrayList<SearchTerm>();
+		for (String prefix: prefixes.split(CoreConstants.COMMA)) {
+			prefix = prefix.trim();
+			if (!StringUtil.isEmpty(prefix)) {
+				//	IMAP SEARCH is case insensitive, so lower case identifiers are found too
+				terms.add(new SubjectTerm(prefix + CoreConstants.MINUS));
+			}
+		}
+		if (ListUtil.isEmpty(terms)) {
+			return null;
+		}
+
+		return terms.size() == 1 ? terms.get(0) : new OrTerm(terms.toArray(new SearchTerm[terms.size()]));
+	}
+
 	@Override
 	public MessageParserType getParserType() {
 		return MessageParserType.BPM;
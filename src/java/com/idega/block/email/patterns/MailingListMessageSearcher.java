@@ -2,11 +2,12 @@ package com.idega.block.email.patterns;
 
 import java.util.HashMap;
 import java.util.Map;
-import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import javax.mail.Message;
 import javax.mail.MessagingException;
+import javax.mail.search.SearchTerm;
+import javax.mail.search.SubjectTerm;
 
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.config.BeanDefinition;
@@ -30,6 +31,7 @@ public class MailingListMessageSearcher extends DefaultSubjectPatternFinder {
 
 	private static final String MAILING_LIST_REGULAR_EXPRESSION = "\\[.*" + EmailConstants.IW_MAILING_LIST + "\\]";
 	private static final Pattern MAILING_LIST_REGULAR_EXPRESSION_PATTERN = Pattern.compile(MAILING_LIST_REGULAR_EXPRESSION);
+	private static final SearchTerm MAILING_LIST_SEARCH_TERM = new SubjectTerm(EmailConstants.IW_MAILING_LIST + "]");
 
 	@Autowired
 	private MailingListManager mailingListManager;
@@ -52,9 +54,8 @@ public class MailingListMessageSearcher extends DefaultSubjectPatternFinder {
 				continue;
 			}
 
-			Matcher subjectMatcher = getPatterns().get(0).matcher(subject);
-			subjectMatcher.find();
-			String mailingListIdentifier = subject.substring(subjectMatcher.start(), subjectMatcher.end());
+			SubjectPatternMatcher.Match subjectMatch = getSubjectMatch(subject);
+			String mailingListIdentifier = subjectMatch == null ? null : subjectMatch.getMatchedText();
 			if (StringUtil.isEmpty(mailingListIdentifier)) {
 				continue;
 			}
@@ -80,6 +81,11 @@ public class MailingListMessageSearcher extends DefaultSubjectPatternFinder {
 		return mailingListsMessages;
 	}
 
+	@Override
+	public SearchTerm getServerSideSearchTerm() {
+		return MAILING_LIST_SEARCH_TERM;
+	}
+
 	@Override
 	public MessageParserType getParserType() {
 		return MessageParserType.MAILING_LIST;
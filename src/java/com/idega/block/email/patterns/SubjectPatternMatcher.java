@@ -0,0 +1,159 @@
+package com.idega.block.email.patterns;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Matches subject against several patterns in one pass: patterns are compiled into one alternation, each of them wrapped in a capturing group, so
+ * the group which took part in the match tells which pattern has matched. Patterns which can not be combined safely (having back references,
+ * named groups, comments mode, quoting or flags without inline equivalent) are matched one by one after the combined pattern.
+ */
+public class SubjectPatternMatcher {
+
+	private static final Pattern BACK_REFERENCE = Pattern.compile("\\\\[1-9]|\\\\k<");
+
+	//	Comments would run to the end of the combined pattern, not closed quote would quote the rest of it, names of groups have to be unique
+	private static final Pattern NOT_COMBINABLE = Pattern.compile("\\(\\?[a-zA-Z]*x|\\\\Q|\\(\\?<[a-zA-Z]");
+
+	//	Flags which have inline equivalents not changing the syntax of the pattern
+	private static final int COMBINABLE_FLAGS = Pattern.CASE_INSENSITIVE | Pattern.MULTILINE | Pattern.DOTALL | Pattern.UNICODE_CASE |
+			Pattern.UNIX_LINES;
+
+	private final List<Pattern> patterns;
+
+	private final Pattern combined;
+	private final List<Integer> combinedPatterns = new ArrayList<Integer>(),
+								combinedGroups = new ArrayList<Integer>(),
+								separatePatterns = new ArrayList<Integer>();
+
+	public SubjectPatternMatcher(List<Pattern> patterns) {
+		this.patterns = patterns == null ? Collections.<Pattern>emptyList() : new ArrayList<Pattern>(patterns);
+
+		StringBuilder alternation = new StringBuilder();
+		int group = 1;
+		for (int i = 0; i < this.patterns.size(); i++) {
+			Pattern pattern = this.patterns.get(i);
+			String inlineFlags = getInlineFlags(pattern.flags());
+			if (inlineFlags == null || BACK_REFERENCE.matcher(pattern.pattern()).find() || NOT_COMBINABLE.matcher(pattern.pattern()).find()) {
+				separatePatterns.add(i);
+				continue;
+			}
+
+			if (alternation.length() > 0) {
+				alternation.append('|');
+			}
+			alternation.append("((?").append(inlineFlags).append(':').append(pattern.pattern()).append("))");
+
+			combinedPatterns.add(i);
+			combinedGroups.add(group);
+			group += 1 + pattern.matcher("").groupCount();
+		}
+
+		combined = alternation.length() == 0 ? null : Pattern.compile(alternation.toString());
+	}
+
+	/**
+	 * @return inline flags or <code>null</code> if some of the flags can not be inlined (e.g. comments, literal, canonical equivalence)
+	 */
+	private String getInlineFlags(int flags) {
+		if ((flags & ~COMBINABLE_FLAGS) != 0) {
+			return null;
+		}
+
+		StringBuilder inlineFlags = new StringBuilder();
+		if ((flags & Pattern.CASE_INSENSITIVE) != 0) {
+			inlineFlags.append('i');
+		}
+		if ((flags & Pattern.MULTILINE) != 0) {
+			inlineFlags.append('m');
+		}
+		if ((flags & Pattern.DOTALL) != 0) {
+			inlineFlags.append('s');
+		}
+		if ((flags & Pattern.UNICODE_CASE) != 0) {
+			inlineFlags.append('u');
+		}
+		if ((flags & Pattern.UNIX_LINES) != 0) {
+			inlineFlags.append('d');
+		}
+		return inlineFlags.toString();
+	}
+
+	/**
+	 * Combined patterns are tried first: the leftmost match of them is returned, the earlier pattern wins at the same position. Only if none of
+	 * them match, the other patterns are tried in their order.
+	 *
+	 * @return match of the patterns or <code>null</code> if none of the patterns match the subject
+	 */
+	public Match find(String subject) {
+		if (subject == null) {
+			return null;
+		}
+
+		if (combined != null) {
+			Matcher matcher = combined.matcher(subject);
+			if (matcher.find()) {
+				for (int i = 0; i < combinedGroups.size(); i++) {
+					int group = combinedGroups.get(i);
+					if (matcher.start(group) != -1) {
+						int patternIndex = combinedPatterns.get(i);
+						return new Match(patternIndex, patterns.get(patternIndex), subject, matcher.start(group), matcher.end(group));
+					}
+				}
+			}
+		}
+
+		for (int patternIndex: separatePatterns) {
+			Matcher matcher = patterns.get(patternIndex).matcher(subject);
+			if (matcher.find()) {
+				return new Match(patternIndex, patterns.get(patternIndex), subject, matcher.start(), matcher.end());
+			}
+		}
+
+		return null;
+	}
+
+	public static class Match {
+
+		private final int patternIndex, start, end;
+		private final Pattern pattern;
+		private final String subject;
+
+		private Match(int patternIndex, Pattern pattern, String subject, int start, int end) {
+			this.patternIndex = patternIndex;
+			this.pattern = pattern;
+			this.subject = subject;
+			this.start = start;
+			this.end = end;
+		}
+
+		public int getPatternIndex() {
+			return patternIndex;
+		}
+
+		public Pattern getPattern() {
+			return pattern;
+		}
+
+		public int getStart() {
+			return start;
+		}
+
+		public int getEnd() {
+			return end;
+		}
+
+		public String getMatchedText() {
+			return subject.substring(start, end);
+		}
+
+		@Override
+		public String toString() {
+			return "Pattern: " + pattern + ", matched: " + getMatchedText();
+		}
+	}
+
+}